@@ -34,6 +34,12 @@ public class Command {
     public static final String LIST =    "list";
     public static final String CONVERT = "convert";
     public static final String FIELDS =  "fields";
+    public static final String SORT_BUFFER = "sortbuffer";
+    public static final String TEMP_DIR = "tempdir";
+    public static final String THREADS = "threads";
+    public static final String CHECKPOINT = "checkpoint";
+    public static final String INCREMENTAL = "incremental";
+    public static final String SIDECAR = "sidecar";
     
     @SuppressWarnings("CallToPrintStackTrace")
     public static void main(String[] args) throws IOException {
@@ -91,7 +97,12 @@ public class Command {
                 usage();
                 return;
             }
-            convert(in, out, dvFields, verbose);
+            DVSettings settings = getSettings(cli);
+            if (settings == null) {
+                usage();
+                return;
+            }
+            convert(in, out, dvFields, settings, verbose);
             return;
         }
 
@@ -99,9 +110,43 @@ public class Command {
         usage();
     }
 
-    private static void convert(File in, File out, List<DVConfig> dvFields, boolean verbose) throws IOException {
+    private static DVSettings getSettings(CommandLine cli) {
+        DVSettings settings = new DVSettings();
+        if (cli.hasOption(SORT_BUFFER)) {
+            try {
+                settings.setSortBufferMB(Integer.parseInt(cli.getOptionValue(SORT_BUFFER)));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid sort buffer '" + cli.getOptionValue(SORT_BUFFER) + "'");
+                return null;
+            }
+        }
+        if (cli.hasOption(TEMP_DIR)) {
+            final File tempDir = new File(cli.getOptionValue(TEMP_DIR));
+            if (!tempDir.isDirectory()) {
+                System.err.println("Unable to access temporary folder '" + tempDir + "'");
+                return null;
+            }
+            settings.setTempDir(tempDir);
+        }
+        if (cli.hasOption(THREADS)) {
+            try {
+                settings.setThreads(Integer.parseInt(cli.getOptionValue(THREADS)));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid number of threads '" + cli.getOptionValue(THREADS) + "'");
+                return null;
+            }
+        }
+        settings.setCheckpoint(cli.hasOption(CHECKPOINT));
+        settings.setIncremental(cli.hasOption(INCREMENTAL));
+        settings.setSidecar(cli.hasOption(SIDECAR));
+        return settings;
+    }
+
+    private static void convert(File in, File out, List<DVConfig> dvFields, DVSettings settings, boolean verbose)
+            throws IOException {
         if (verbose) {
-            System.out.println(String.format("Adjusting from %s to %s with adjustment fields", in, out));
+            System.out.println(String.format("Adjusting from %s to %s with %s and adjustment fields",
+                                             in, out, settings));
             for (DVConfig dvConfig: dvFields) {
                 System.out.println(dvConfig.toString(true));
             }
@@ -110,7 +155,7 @@ public class Command {
                                              in, out, dvFields.size()));
         }
         long processTime = -System.nanoTime();
-        IndexUtils.convert(in, out, dvFields);
+        IndexUtils.convert(in, out, dvFields, settings);
         processTime += System.nanoTime();
         System.out.println("Finished conversion successfully in " + (processTime/1000000/1000) + " seconds");
     }
@@ -125,6 +170,18 @@ public class Command {
         List<DVConfig> adjustedConfigs = new ArrayList<>(rawFields.length);
         raw:
         for (String rawField: rawFields) {
+            DVConfig.Source source = DVConfig.Source.STORED;
+            final int sourceIndex = rawField.lastIndexOf(':');
+            if (sourceIndex != -1) {
+                try {
+                    source = DVConfig.Source.valueOf(rawField.substring(sourceIndex+1));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("The source '" + rawField.substring(sourceIndex+1) + "' for '" + rawField
+                                       + "' is unknown");
+                    return null;
+                }
+                rawField = rawField.substring(0, sourceIndex);
+            }
             String[] tokens = rawField.replace(")", "").split("[(]", 2);
             if (tokens.length == 1) {
                 System.err.println("No docvalues type specified for '" + rawField + "'");
@@ -154,6 +211,7 @@ public class Command {
                                 return null;
                             }
                         }
+                        dvConfig.setSource(source);
                         adjustedConfigs.add(dvConfig);
                     } catch (IllegalArgumentException e) {
                         System.err.println("The DocValueType '" + numTokens[0] + " for field "
@@ -182,11 +240,18 @@ public class Command {
         options.addOption("v", VERBOSE, false, "Enable verbose output");
         options.addOption("l", LIST, false, "Lists fields in index");
         options.addOption("c", CONVERT, false, "Convert index with the given field adjustments");
+        options.addOption("k", CHECKPOINT, false, "Commit the conversion segment by segment. If the conversion is "
+                                                  + "interrupted, running it again continues where it stopped");
+        options.addOption("n", INCREMENTAL, false, "Update the output index from an earlier incremental conversion "
+                                                   + "with the changes to the input index. Implies checkpoint");
+        options.addOption("d", SIDECAR, false, "Link the input index files to the output and only write the new "
+                                               + "DocValues. Only supports adding DocValues to fields without "
+                                               + "DocValues in Lucene 4.6+ indexes");
         {
             Option iOption = new Option(
                     "f", FIELDS, true,
                     "The fields to adjust.\n"
-                    + "entry: fieldname(docvaluetype)\n"
+                    + "entry: fieldname(docvaluetype)[:source]\n"
                     + "docvaluetype: "
                     + "NONE" + " | "
                     + FieldInfo.DocValuesType.NUMERIC + "(numerictype) | "
@@ -198,7 +263,11 @@ public class Command {
                     + FieldType.NumericType.LONG + " | "
                     + FieldType.NumericType.FLOAT + " | "
                     + FieldType.NumericType.DOUBLE + "\n"
-                    + "Sample: title(SORTED) year(NUMERIC(INT)) author(SORTED_SET) deprecated(NONE)");
+                    + "source: " + DVConfig.Source.STORED + " (default) | " + DVConfig.Source.POSTINGS
+                    + " (untokenized " + FieldInfo.DocValuesType.SORTED + " and "
+                    + FieldInfo.DocValuesType.SORTED_SET + " or trie " + FieldInfo.DocValuesType.NUMERIC + " only)\n"
+                    + "Sample: title(SORTED) year(NUMERIC(INT)) author(SORTED_SET) deprecated(NONE) "
+                    + "url(SORTED):POSTINGS size(NUMERIC(LONG)):POSTINGS");
             iOption.setArgs(Option.UNLIMITED_VALUES);
             options.addOption(iOption);
         }
@@ -212,6 +281,27 @@ public class Command {
             iOption.setArgs(1);
             options.addOption(iOption);
         }
+        {
+            Option iOption = new Option(
+                    "s", SORT_BUFFER, true,
+                    "Heap in MB for sorting unique values of String fields in a segment. If exceeded, the values "
+                    + "are sorted on storage (default " + DVSettings.DEFAULT_SORT_BUFFER_MB + ")");
+            iOption.setArgs(1);
+            options.addOption(iOption);
+        }
+        {
+            Option iOption = new Option("t", TEMP_DIR, true, "Folder for temporary files (default system temp)");
+            iOption.setArgs(1);
+            options.addOption(iOption);
+        }
+        {
+            Option iOption = new Option(
+                    "p", THREADS, true,
+                    "The number of segments to convert in parallel. Each thread uses its own sort buffer "
+                    + "(default " + DVSettings.DEFAULT_THREADS + ")");
+            iOption.setArgs(1);
+            options.addOption(iOption);
+        }
 
         return options;
     }
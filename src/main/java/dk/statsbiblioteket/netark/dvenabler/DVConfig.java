@@ -23,7 +23,24 @@ import org.apache.lucene.index.FieldInfo;
  */
 public class DVConfig implements Comparable<DVConfig>{
 
+    /**
+     * Where the content for constructing DocValues is taken from.
+     */
+    public enum Source {
+        /**
+         * The stored values for the field. Works for all DocValues types, but requires the field to be stored.
+         */
+        STORED,
+        /**
+         * The terms and postings for the field. Only valid for SORTED and SORTED_SET on untokenized fields, where
+         * each term is a value, and for NUMERIC on trie encoded numeric fields. Does not require the field to be
+         * stored and is a lot faster than STORED.
+         */
+        POSTINGS
+    }
+
     private FieldInfo fieldInfo;
+    private Source source = Source.STORED;
     private FieldType.NumericType numericType; // Only relevant when {@link FieldInfo#getDocValuesType} == NUMERIC
     private final boolean verbose;
     private final String firstValue;
@@ -58,6 +75,19 @@ public class DVConfig implements Comparable<DVConfig>{
         this.numericType = numericType;
     }
 
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * @param source where the content for constructing DocValues is taken from.
+     * @return the adjusted DVConfig, which is also the current DVConfig.
+     */
+    public DVConfig setSource(Source source) {
+        this.source = source;
+        return this;
+    }
+
     public String getName() {
         return fieldInfo.name;
     }
@@ -114,15 +144,17 @@ public class DVConfig implements Comparable<DVConfig>{
         return toString(false);
     }
     public String toString(boolean verbose) {
+        String sourceInfo = source == Source.STORED ? "" : ", Source=" + source;
         return verbose && this.verbose ?
-                String.format("DVConfig(field=%s, DV=%s, NumericType=%s, firstIndexed='%s')",
+                String.format("DVConfig(field=%s, DV=%s, NumericType=%s%s, firstIndexed='%s')",
                               getName(),
                               hasDocValues() ? getFieldInfo().getDocValuesType() : "No",
                               !hasDocValues() || getNumericType() == null ? "N/A" : getNumericType(),
-                              firstValue) :
-                String.format("DVConfig(field=%s, DV=%s, NumericType=%s)",
+                              sourceInfo, firstValue) :
+                String.format("DVConfig(field=%s, DV=%s, NumericType=%s%s)",
                               getName(),
                               hasDocValues() ? getFieldInfo().getDocValuesType() : "No",
-                              !hasDocValues() || getNumericType() == null ? "N/A" : getNumericType());
+                              !hasDocValues() || getNumericType() == null ? "N/A" : getNumericType(),
+                              sourceInfo);
     }
 }
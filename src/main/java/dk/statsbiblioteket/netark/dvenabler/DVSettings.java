@@ -0,0 +1,301 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler;
+
+import java.io.File;
+
+/**
+ * Setup that is not specific to a single field, such as resource limits. Where {@link DVConfig} describes what
+ * should happen to a field, DVSettings describes how it should happen.
+ * </p><p>
+ * The setters return the DVSettings itself, to allow for chaining.
+ */
+public class DVSettings {
+    public static final int DEFAULT_SORT_BUFFER_MB = 256;
+    public static final int DEFAULT_THREADS = 1;
+    public static final int DEFAULT_CHUNK_CACHE_MB = 4;
+    public static final int DEFAULT_DECODERS = 1;
+    public static final int DEFAULT_PIPELINE_DEPTH = 4;
+    public static final int DEFAULT_CACHE_MB = 1024;
+    public static final int DEFAULT_WARMUP_THREADS = 0;
+
+    private int sortBufferMB = DEFAULT_SORT_BUFFER_MB;
+    private File tempDir = null;
+    private int threads = DEFAULT_THREADS;
+    private boolean checkpoint = false;
+    private boolean incremental = false;
+    private boolean sidecar = false;
+    private int chunkCacheMB = DEFAULT_CHUNK_CACHE_MB;
+    private int decoders = DEFAULT_DECODERS;
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+    private int cacheMB = DEFAULT_CACHE_MB;
+    private File cacheDir = null;
+    private int warmupThreads = DEFAULT_WARMUP_THREADS;
+
+    /**
+     * @return the maximum amount of heap used for sorting unique String values while extracting DocValues for a
+     *         segment. Shared between all SORTED and SORTED_SET fields in the segment.
+     */
+    public int getSortBufferMB() {
+        return sortBufferMB;
+    }
+
+    /**
+     * @param sortBufferMB the maximum amount of heap used for sorting unique String values while extracting
+     *                     DocValues for a segment. When exceeded, the values are sorted on storage instead.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setSortBufferMB(int sortBufferMB) {
+        if (sortBufferMB < 1) {
+            throw new IllegalArgumentException("The sort buffer must be at least 1MB but was " + sortBufferMB);
+        }
+        this.sortBufferMB = sortBufferMB;
+        return this;
+    }
+
+    /**
+     * @return folder for temporary files. If null, the system default is used.
+     */
+    public File getTempDir() {
+        return tempDir;
+    }
+
+    /**
+     * @param tempDir folder for temporary files. If null, the system default is used.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setTempDir(File tempDir) {
+        this.tempDir = tempDir;
+        return this;
+    }
+
+    /**
+     * @return the number of segments to convert concurrently. 1 means sequential conversion.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads the number of segments to convert concurrently. 1 means sequential conversion.
+     *                Note that the sort buffer is allocated per segment, so heap usage for sorting is up to
+     *                {@code threads * sortBufferMB}.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be at least 1 but was " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @return true if the conversion commits segment by segment and resumes interrupted conversions.
+     */
+    public boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @param checkpoint if true, each source segment is converted and committed on its own. A conversion that
+     *                   was interrupted continues from the segments that were not finished, when started again
+     *                   with the same source, destination and fields. Each source segment becomes a separate
+     *                   segment in the destination.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setCheckpoint(boolean checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    /**
+     * @return true if an existing destination is updated with the changes to the source since the last conversion.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental if true, an existing destination from an earlier incremental conversion with the same
+     *                    fields is updated in place: Only source segments added since the last conversion are
+     *                    converted, destination segments for source segments that no longer exists are removed
+     *                    and deletions in the source are applied to the destination. Implies checkpointing.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+    /**
+     * @return true if only the new DocValues are written, leaving the existing segment files untouched.
+     */
+    public boolean isSidecar() {
+        return sidecar;
+    }
+
+    /**
+     * @param sidecar if true, the files of the source index are linked or copied to the destination and only the
+     *                new DocValues are written for each segment. Only supports adding DocValues to fields without
+     *                DocValues and requires segments written with Lucene 4.6+. Takes precedence over checkpoint
+     *                and incremental.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setSidecar(boolean sidecar) {
+        this.sidecar = sidecar;
+        return this;
+    }
+
+    /**
+     * @return the maximum amount of heap used for decompressed stored field chunks, per segment.
+     */
+    public int getChunkCacheMB() {
+        return chunkCacheMB;
+    }
+
+    /**
+     * @param chunkCacheMB the maximum amount of heap used for holding decompressed chunks of stored fields, per
+     *                     segment. Documents are read one at a time during conversion and the cache ensures
+     *                     that each chunk is only decompressed once. 0 disables the cache.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setChunkCacheMB(int chunkCacheMB) {
+        if (chunkCacheMB < 0) {
+            throw new IllegalArgumentException("The chunk cache must be at least 0MB but was " + chunkCacheMB);
+        }
+        this.chunkCacheMB = chunkCacheMB;
+        return this;
+    }
+
+    /**
+     * @return the number of threads decoding stored fields for a segment. 0 means decoding on the thread that
+     *         collects the values.
+     */
+    public int getDecoders() {
+        return decoders;
+    }
+
+    /**
+     * @param decoders the number of threads decoding stored fields for a segment, ahead of the thread collecting
+     *                 the values. With 0, decoding and collecting is done by the same thread. The decoder threads
+     *                 are also used for post-processing of the collected values for multiple fields in parallel.
+     *                 This is per segment, so the total is {@code threads * decoders}.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setDecoders(int decoders) {
+        if (decoders < 0) {
+            throw new IllegalArgumentException("The number of decoders must be at least 0 but was " + decoders);
+        }
+        this.decoders = decoders;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of blocks of decoded documents waiting to be collected, per segment.
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * @param pipelineDepth the maximum number of blocks of documents that are decoded, or being decoded, ahead of
+     *                      the thread collecting the values. Should be at least the number of decoders. If the
+     *                      log for the extraction states that few blocks were ready when needed, more decoders
+     *                      or a deeper pipeline might help.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("The pipeline depth must be at least 1 but was " + pipelineDepth);
+        }
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    /**
+     * @return the maximum amount of heap used for holding extracted DocValues, shared by all segments in a reader.
+     */
+    public int getCacheMB() {
+        return cacheMB;
+    }
+
+    /**
+     * @param cacheMB the maximum amount of heap used for holding extracted DocValues, shared by all segments in
+     *                a {@link dk.statsbiblioteket.netark.dvenabler.wrapper.DVDirectoryReader}. When exceeded,
+     *                the least recently used DocValues are released and extracted again if requested.
+     *                The DocValues from the latest extraction are always held, even if they exceed the budget.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setCacheMB(int cacheMB) {
+        if (cacheMB < 0) {
+            throw new IllegalArgumentException("The cache must be at least 0MB but was " + cacheMB);
+        }
+        this.cacheMB = cacheMB;
+        return this;
+    }
+
+    /**
+     * @return folder for storing extracted DocValues between runs. If null, DocValues are only held on the heap.
+     */
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * @param cacheDir folder for storing extracted DocValues between runs, with a sub folder for each segment.
+     *                 Stored DocValues are memory mapped instead of being extracted again and are held off-heap.
+     *                 The folder should only be used for a single index. If null, DocValues are only held on
+     *                 the heap.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+        return this;
+    }
+
+    /**
+     * @return the number of segments to extract DocValues for concurrently when a reader is opened. 0 means
+     *         that DocValues are extracted on first request.
+     */
+    public int getWarmupThreads() {
+        return warmupThreads;
+    }
+
+    /**
+     * @param warmupThreads the number of segments to extract DocValues for concurrently in the background, when
+     *                      a {@link dk.statsbiblioteket.netark.dvenabler.wrapper.DVDirectoryReader} is opened or
+     *                      reopened. 0 means that DocValues are extracted on first request.
+     * @return the adjusted DVSettings, which is also the current DVSettings.
+     */
+    public DVSettings setWarmupThreads(int warmupThreads) {
+        if (warmupThreads < 0) {
+            throw new IllegalArgumentException(
+                    "The number of warmup threads must be at least 0 but was " + warmupThreads);
+        }
+        this.warmupThreads = warmupThreads;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "DVSettings(sortBuffer=%dMB, tempDir=%s, threads=%d, checkpoint=%b, incremental=%b, sidecar=%b, "
+                + "chunkCache=%dMB, decoders=%d, pipelineDepth=%d, cache=%dMB, cacheDir=%s, warmupThreads=%d)",
+                sortBufferMB, tempDir == null ? "default" : tempDir, threads, checkpoint, incremental, sidecar,
+                chunkCacheMB, decoders, pipelineDepth, cacheMB, cacheDir == null ? "none" : cacheDir,
+                warmupThreads);
+    }
+}
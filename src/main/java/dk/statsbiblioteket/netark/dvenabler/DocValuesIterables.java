@@ -0,0 +1,218 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Exposes DocValues as the Iterables taken by {@link org.apache.lucene.codecs.DocValuesConsumer}, matching the
+ * ones used by Lucene when merging. The Iterables are not thread safe and each one should be given its own
+ * DocValues instance.
+ */
+public class DocValuesIterables {
+
+    public static Iterable<Number> numericValues(
+            final NumericDocValues values, final Bits docsWithField, final int maxDoc) {
+        return new Iterable<Number>() {
+            @Override
+            public Iterator<Number> iterator() {
+                return new DocIterator<Number>(maxDoc) {
+                    @Override
+                    protected Number get(int docID) {
+                        return docsWithField == null || docsWithField.get(docID) ? values.get(docID) : null;
+                    }
+                };
+            }
+        };
+    }
+
+    public static Iterable<BytesRef> binaryValues(
+            final BinaryDocValues values, final Bits docsWithField, final int maxDoc) {
+        return new Iterable<BytesRef>() {
+            @Override
+            public Iterator<BytesRef> iterator() {
+                return new DocIterator<BytesRef>(maxDoc) {
+                    private final BytesRef scratch = new BytesRef();
+                    @Override
+                    protected BytesRef get(int docID) {
+                        if (docsWithField != null && !docsWithField.get(docID)) {
+                            return null;
+                        }
+                        values.get(docID, scratch);
+                        return scratch;
+                    }
+                };
+            }
+        };
+    }
+
+    public static Iterable<BytesRef> sortedValues(final SortedDocValues values) {
+        return new Iterable<BytesRef>() {
+            @Override
+            public Iterator<BytesRef> iterator() {
+                return new DocIterator<BytesRef>(values.getValueCount()) {
+                    private final BytesRef scratch = new BytesRef();
+                    @Override
+                    protected BytesRef get(int ord) {
+                        values.lookupOrd(ord, scratch);
+                        return scratch;
+                    }
+                };
+            }
+        };
+    }
+
+    public static Iterable<Number> sortedOrds(final SortedDocValues values, final int maxDoc) {
+        return new Iterable<Number>() {
+            @Override
+            public Iterator<Number> iterator() {
+                return new DocIterator<Number>(maxDoc) {
+                    @Override
+                    protected Number get(int docID) {
+                        return values.getOrd(docID);
+                    }
+                };
+            }
+        };
+    }
+
+    public static Iterable<BytesRef> sortedSetValues(final SortedSetDocValues values) {
+        return new Iterable<BytesRef>() {
+            @Override
+            public Iterator<BytesRef> iterator() {
+                return new Iterator<BytesRef>() {
+                    private final BytesRef scratch = new BytesRef();
+                    private long ord = 0;
+                    @Override
+                    public boolean hasNext() {
+                        return ord < values.getValueCount();
+                    }
+
+                    @Override
+                    public BytesRef next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        values.lookupOrd(ord++, scratch);
+                        return scratch;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    public static Iterable<Number> sortedSetOrdCounts(final SortedSetDocValues values, final int maxDoc) {
+        return new Iterable<Number>() {
+            @Override
+            public Iterator<Number> iterator() {
+                return new DocIterator<Number>(maxDoc) {
+                    @Override
+                    protected Number get(int docID) {
+                        values.setDocument(docID);
+                        int count = 0;
+                        while (values.nextOrd() != SortedSetDocValues.NO_MORE_ORDS) {
+                            count++;
+                        }
+                        return count;
+                    }
+                };
+            }
+        };
+    }
+
+    public static Iterable<Number> sortedSetOrds(final SortedSetDocValues values, final int maxDoc) {
+        return new Iterable<Number>() {
+            @Override
+            public Iterator<Number> iterator() {
+                return new Iterator<Number>() {
+                    private int docID = -1;
+                    private long ord = SortedSetDocValues.NO_MORE_ORDS;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (ord == SortedSetDocValues.NO_MORE_ORDS) {
+                            if (docID + 1 >= maxDoc) {
+                                return false;
+                            }
+                            values.setDocument(++docID);
+                            ord = values.nextOrd();
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public Number next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        long current = ord;
+                        ord = values.nextOrd();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterates the values from 0 (inclusive) to size (exclusive), delivered by {@link #get(int)}.
+     */
+    private abstract static class DocIterator<T> implements Iterator<T> {
+        private final int size;
+        private int index = 0;
+
+        public DocIterator(int size) {
+            this.size = size;
+        }
+
+        protected abstract T get(int index);
+
+        @Override
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return get(index++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
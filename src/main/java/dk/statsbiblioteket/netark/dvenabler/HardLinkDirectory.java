@@ -0,0 +1,73 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Directory that creates hard links instead of copying files, when copying to another folder on the same file
+ * system. Lucene index files are never changed after they have been written, so sharing them is safe.
+ * Used as source for {@link org.apache.lucene.index.IndexWriter#addIndexes(Directory...)}, which copies all
+ * files for the segments. If linking is not possible, the files are copied byte for byte using
+ * {@link FileChannel#transferTo}, which avoids passing the data through the heap.
+ */
+public class HardLinkDirectory extends MMapDirectory {
+    private static Log log = LogFactory.getLog(HardLinkDirectory.class);
+
+    public HardLinkDirectory(File path) throws IOException {
+        super(path);
+    }
+
+    @Override
+    public void copy(Directory to, String src, String dest, IOContext context) throws IOException {
+        if (to instanceof FSDirectory) {
+            try {
+                Files.createLink(new File(((FSDirectory) to).getDirectory(), dest).toPath(),
+                                 new File(getDirectory(), src).toPath());
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                log.debug("Unable to create hard link from " + src + " to " + dest + ". Copying instead", e);
+            }
+            transfer(new File(getDirectory(), src), new File(((FSDirectory) to).getDirectory(), dest));
+            return;
+        }
+        super.copy(to, src, dest, context);
+    }
+
+    // The destination is synced here as the receiving FSDirectory does not know about the file
+    private void transfer(File src, File dest) throws IOException {
+        try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(true);
+        }
+    }
+}
@@ -3,7 +3,9 @@ package dk.statsbiblioteket.netark.dvenabler;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
+import dk.statsbiblioteket.netark.dvenabler.wrapper.ChunkCachedReader;
 import dk.statsbiblioteket.netark.dvenabler.wrapper.DVDirectoryReader;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,6 +13,7 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.MMapDirectory;
 
 import org.apache.lucene.util.BytesRef;
@@ -23,6 +26,11 @@ public class IndexUtils {
     private static final Version LUCENE_VERSION = Version.LUCENE_48;
     private static final long M = 1000000;
 
+    /**
+     * Folder inside the destination used for holding segments that are passed through during conversion.
+     */
+    public static final String PASSTHROUGH_FOLDER = "dvenabler.passthrough";
+
     /**
      * Transform the index at source to the destination, adjusting DocValues for the given adjustFields underway.
      * @param source       the location of an existing index.
@@ -32,31 +40,74 @@ public class IndexUtils {
      */
     public static void convert(
             File source, File destination, Collection<DVConfig> dvConfigs) throws IOException {
+        convert(source, destination, dvConfigs, new DVSettings());
+    }
+
+    /**
+     * Transform the index at source to the destination, adjusting DocValues for the given adjustFields underway.
+     * @param source       the location of an existing index.
+     * @param destination  where the adjusted index should be stored.
+     * @param dvConfigs the fields to adjust. Use {@link #getDVConfigs(java.io.File)} to obtain the
+     *                         original setup.
+     * @param settings     resource limits for the conversion.
+     */
+    public static void convert(
+            File source, File destination, Collection<DVConfig> dvConfigs, DVSettings settings) throws IOException {
         log.info("Converting index at " + source + " to " + destination + " with " + dvConfigs.size()
-                 + " DocValues adjustment fields");
+                 + " DocValues adjustment fields and " + settings);
         final long startTime = System.nanoTime();
 
         DirectoryReader inner = DirectoryReader.open(MMapDirectory.open(source));
         final long afterInner = System.nanoTime();
         log.info("Opened standard reader(" + source + ") in " + (afterInner-startTime)/M + "ms");
 
-        IndexReader dvReader = new DVDirectoryReader(inner, new HashSet<>(dvConfigs));
+        DirectoryReader dvReader = new DVDirectoryReader(inner, new HashSet<>(dvConfigs), settings);
         final long afterWrapper = System.nanoTime();
         log.info("Opened DVWrapper(" + source + ") in " + (afterWrapper-afterInner)/M + "ms");
 
+        if (settings.isSidecar()) {
+            new SidecarConverter(dvReader, source, destination, dvConfigs, settings).convert();
+            dvReader.close();
+            log.info("All done. Total time " + (System.nanoTime() - startTime) / M + "ms");
+            return;
+        }
+        if (settings.isCheckpoint() || settings.isIncremental()) {
+            new SegmentwiseConverter(dvReader, destination, dvConfigs, settings).convert();
+            dvReader.close();
+            log.info("All done. Total time " + (System.nanoTime() - startTime) / M + "ms");
+            return;
+        }
+
+        final List<SegmentPassthrough> passthroughs = new ArrayList<>(dvReader.leaves().size());
+        int passthroughCount = 0;
+        for (AtomicReaderContext leaf: dvReader.leaves()) {
+            SegmentPassthrough passthrough = new SegmentPassthrough(leaf.reader(), dvConfigs);
+            passthroughs.add(passthrough);
+            passthroughCount += passthrough.isPassthrough() ? 1 : 0;
+        }
+
         Analyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
-        IndexWriter writer = new IndexWriter(
-                MMapDirectory.open(destination), new IndexWriterConfig(LUCENE_VERSION, analyzer));
+        IndexWriterConfig writerConfig = new IndexWriterConfig(LUCENE_VERSION, analyzer);
+        if (passthroughCount > 0) { // Merging would defeat the purpose of passing segments through
+            writerConfig.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+        }
+        IndexWriter writer = new IndexWriter(MMapDirectory.open(destination), writerConfig);
         final long afterWriterCreation = System.nanoTime();
         log.info("Created writer(" + destination + ") in " + (afterWriterCreation-afterWrapper)/M + "ms");
 
-        writer.addIndexes(dvReader);
+        if (passthroughCount == 0) {
+            addIndexes(writer, dvReader.leaves(), settings);
+        } else {
+            log.info(passthroughCount + "/" + passthroughs.size() + " segments are not affected by the adjustments "
+                     + "and will be passed through without conversion");
+            addIndexesWithPassthrough(writer, dvReader, passthroughs, destination, settings);
+        }
         final long afterConversion = System.nanoTime();
         log.info("Converted index(" + destination + ") in " + (afterConversion-afterWriterCreation)/M + "ms");
 
         writer.commit();
         final long afterCommit = System.nanoTime();
-        log.info("Finished commit(" + destination + ") in " + (afterCommit - afterCommit) / M + "ms");
+        log.info("Finished commit(" + destination + ") in " + (afterCommit - afterConversion) / M + "ms");
 
         // No need for optimize as the addIndexes + commit ensures transformation
         writer.close();
@@ -64,6 +115,174 @@ public class IndexUtils {
         log.info("All done. Total time " + (System.nanoTime() - startTime) / M + "ms");
     }
 
+    /**
+     * Adds the segments to the writer. With 1 thread, the segments are merged to a single segment in the
+     * destination. With more threads, see {@link #addIndexesParallel}.
+     */
+    private static void addIndexes(IndexWriter writer, List<AtomicReaderContext> leaves, DVSettings settings)
+            throws IOException {
+        if (leaves.isEmpty()) {
+            return;
+        }
+        if (settings.getThreads() > 1 && leaves.size() > 1) {
+            addIndexesParallel(writer, leaves, settings);
+            return;
+        }
+        AtomicReader[] readers = new AtomicReader[leaves.size()];
+        for (int i = 0 ; i < readers.length ; i++) {
+            readers[i] = leaves.get(i).reader();
+        }
+        addIndexesCached(writer, settings, readers);
+    }
+
+    /**
+     * Adds the segments to the writer, serving their documents through a cache of decompressed stored field
+     * chunks, as IndexWriter copies the stored fields of non-segment readers one document at a time.
+     * @param writer   the destination for the segments.
+     * @param settings holds the budget for the cache, per segment.
+     * @param readers  the source segments.
+     * @throws IOException if the segments could not be added.
+     */
+    static void addIndexesCached(IndexWriter writer, DVSettings settings, AtomicReader... readers)
+            throws IOException {
+        final List<ChunkCachedReader> cached = new ArrayList<>(readers.length);
+        try {
+            for (AtomicReader reader: readers) {
+                cached.add(new ChunkCachedReader(reader, settings.getChunkCacheMB() * 1048576L));
+            }
+            writer.addIndexes(cached.toArray(new IndexReader[cached.size()]));
+        } finally {
+            for (ChunkCachedReader reader: cached) {
+                reader.close(); // Only releases the cache
+            }
+        }
+    }
+
+    /**
+     * Adds the segments to the writer concurrently, largest segments first. Each source segment
+     * becomes a separate segment in the destination. The caller is responsible for committing.
+     * @param writer   the destination for the segments.
+     * @param leaves   the source segments.
+     * @param settings holds the maximum number of segments to process at the same time.
+     * @throws IOException if any of the segments could not be added.
+     */
+    private static void addIndexesParallel(
+            final IndexWriter writer, List<AtomicReaderContext> leaves, final DVSettings settings)
+            throws IOException {
+        processSegments(leaves, settings.getThreads(), new SegmentTask() {
+            @Override
+            public void process(AtomicReaderContext leaf) throws IOException {
+                final long startTime = System.nanoTime();
+                addIndexesCached(writer, settings, leaf.reader());
+                log.info("Converted segment #" + leaf.ord + " with " + leaf.reader().maxDoc() + " docs in "
+                         + (System.nanoTime()-startTime)/M + "ms");
+            }
+        });
+    }
+
+    /**
+     * Adds the segments to the writer, in order. Segments that can be passed through are hard linked or copied
+     * without conversion. Consecutive segments that needs conversion are added as with
+     * {@link #addIndexes(IndexWriter, List, DVSettings)}.
+     */
+    private static void addIndexesWithPassthrough(
+            IndexWriter writer, IndexReader dvReader, List<SegmentPassthrough> passthroughs, File destination,
+            DVSettings settings) throws IOException {
+        final File passthroughRoot = new File(destination, PASSTHROUGH_FOLDER);
+        delete(passthroughRoot); // Leftovers from an earlier failed conversion
+        List<AtomicReaderContext> convert = new ArrayList<>();
+        for (AtomicReaderContext leaf: dvReader.leaves()) {
+            SegmentPassthrough passthrough = passthroughs.get(leaf.ord);
+            if (!passthrough.isPassthrough()) {
+                convert.add(leaf);
+                continue;
+            }
+            addIndexes(writer, convert, settings);
+            convert.clear();
+            final File folder = new File(passthroughRoot, passthrough.getName());
+            passthrough.createIndex(folder, Collections.<String, String>emptyMap());
+            try (Directory segmentDir = new HardLinkDirectory(folder)) {
+                writer.addIndexes(segmentDir);
+            }
+            delete(folder);
+        }
+        addIndexes(writer, convert, settings);
+        delete(passthroughRoot);
+    }
+
+    static void delete(File path) {
+        File[] subs = path.listFiles();
+        if (subs != null) {
+            for (File subPath: subs) {
+                delete(subPath);
+            }
+        }
+        if (path.exists() && !path.delete()) {
+            log.warn("Unable to delete '" + path + "'");
+        }
+    }
+
+    interface SegmentTask {
+        void process(AtomicReaderContext leaf) throws IOException;
+    }
+
+    /**
+     * Runs the task on all the given segments. With more than 1 thread, the segments are processed
+     * concurrently, largest segments first. With 1 thread, the segments are processed in order.
+     * @param segments the source segments.
+     * @param threads the maximum number of segments to process at the same time.
+     * @param task    the processing to perform for each segment.
+     * @throws IOException if any of the segments could not be processed.
+     */
+    static void processSegments(List<AtomicReaderContext> segments, int threads, final SegmentTask task)
+            throws IOException {
+        List<AtomicReaderContext> leaves = new ArrayList<>(segments);
+        if (threads == 1 || leaves.size() <= 1) {
+            for (AtomicReaderContext leaf: leaves) {
+                task.process(leaf);
+            }
+            return;
+        }
+        // The pool processes tasks in submission order, so largest first avoids a single big segment at the end
+        Collections.sort(leaves, new Comparator<AtomicReaderContext>() {
+            @Override
+            public int compare(AtomicReaderContext o1, AtomicReaderContext o2) {
+                return Integer.compare(o2.reader().maxDoc(), o1.reader().maxDoc());
+            }
+        });
+        log.info("Processing " + leaves.size() + " segments using " + Math.min(threads, leaves.size()) + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, leaves.size()));
+        try {
+            List<Future<Void>> futures = new ArrayList<>(leaves.size());
+            for (final AtomicReaderContext leaf: leaves) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        task.process(leaf);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future: futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for segment conversion", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException)e.getCause();
+                    }
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException)e.getCause();
+                    }
+                    throw new IOException("Exception converting segment", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Extracts field information from the Lucene index at the given location.
      * </p><p>
@@ -0,0 +1,197 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.perfield.PerFieldDocValuesFormat;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.TrackingDirectoryWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Handles segments that need no conversion: Segments where no field is touched by the DocValues adjustments are
+ * passed through as-is, by hard linking or copying their files. Segments where the only adjustments are removal
+ * of DocValues are passed through the same way, with a new generation of the field descriptions without the
+ * removed DocValues, if the codec for the segment allows it. The DocValues data for removed fields are left in
+ * the segment files.
+ * </p><p>
+ * A passed through segment is represented as a single segment index in a folder of its own, which can be added
+ * to the destination with {@link IndexWriter#addIndexes(Directory...)} using a {@link HardLinkDirectory}.
+ */
+public class SegmentPassthrough {
+    private static Log log = LogFactory.getLog(SegmentPassthrough.class);
+
+    private static final long M = 1000000;
+
+    private final SegmentReader segment;
+    private final List<FieldInfo> removals;
+    private final boolean passthrough;
+
+    /**
+     * @param reader    a possibly wrapped reader for a single segment.
+     * @param dvConfigs the DocValues adjustments.
+     */
+    public SegmentPassthrough(AtomicReader reader, Collection<DVConfig> dvConfigs) throws IOException {
+        segment = getSegmentReader(reader);
+        removals = new ArrayList<>();
+        boolean touched = false;
+        final FieldInfos fieldInfos = segment.getFieldInfos();
+        for (DVConfig dvConfig: dvConfigs) {
+            FieldInfo original = fieldInfos.fieldInfo(dvConfig.getName());
+            if (original == null || original.getDocValuesType() == dvConfig.getFieldInfo().getDocValuesType()) {
+                continue; // Not in segment or unchanged
+            }
+            if (original.hasDocValues() && !dvConfig.hasDocValues()) {
+                removals.add(original);
+            } else {
+                touched = true;
+            }
+        }
+        passthrough = !touched &&
+                      (removals.isEmpty() || canWriteFieldInfos(segment.getSegmentInfo().info.getCodec()));
+    }
+
+    /**
+     * @return true if the segment can be passed through without conversion.
+     */
+    public boolean isPassthrough() {
+        return passthrough;
+    }
+
+    /**
+     * @return the name of the segment.
+     */
+    public String getName() {
+        return segment.getSegmentName();
+    }
+
+    /**
+     * Creates a single segment index in the given folder, holding the segment with removed DocValues hidden.
+     * The segment files are hard linked or copied.
+     * @param folder     where to create the index. Must not contain an index.
+     * @param commitData commit user data for the index.
+     * @throws IOException if the index could not be created.
+     */
+    public void createIndex(File folder, Map<String, String> commitData) throws IOException {
+        if (!passthrough) {
+            throw new IllegalStateException("The segment " + getName() + " cannot be passed through");
+        }
+        final long startTime = System.nanoTime();
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Unable to create folder " + folder);
+        }
+        SegmentCommitInfo info = segment.getSegmentInfo();
+        try (Directory sourceDir = new HardLinkDirectory(getFolder(segment.directory()));
+             Directory destDir = MMapDirectory.open(folder)) {
+            for (String file: info.files()) {
+                sourceDir.copy(destDir, file, file, IOContext.DEFAULT);
+            }
+            if (!removals.isEmpty()) {
+                info = writeFieldInfos(info, destDir);
+            }
+            SegmentInfos infos = new SegmentInfos();
+            infos.counter = Integer.parseInt(getName().substring(1), Character.MAX_RADIX) + 1;
+            infos.userData = new HashMap<>(commitData);
+            infos.add(info);
+            SegmentInfosCommitter.commit(infos, destDir);
+        }
+        log.info("Passed through segment " + getName() + " with " + segment.maxDoc() + " docs"
+                 + (removals.isEmpty() ? "" : " and " + removals.size() + " removed DocValues fields") + " in "
+                 + (System.nanoTime()-startTime)/M + "ms");
+    }
+
+    // Writes a new generation of the field descriptions, without the removed DocValues
+    private SegmentCommitInfo writeFieldInfos(SegmentCommitInfo info, Directory destDir) throws IOException {
+        final long gen = info.getNextFieldInfosGen();
+        final TrackingDirectoryWrapper tracker = new TrackingDirectoryWrapper(destDir);
+        List<FieldInfo> fieldInfos = new ArrayList<>();
+        for (FieldInfo original: segment.getFieldInfos()) {
+            fieldInfos.add(!removals.contains(original) ? original : new FieldInfo(
+                    original.name, original.isIndexed(), original.number, original.hasVectors(),
+                    original.omitsNorms(), original.hasPayloads(), original.getIndexOptions(),
+                    null, original.getNormType(), withoutDocValuesFormat(original.attributes())));
+        }
+        info.info.getCodec().fieldInfosFormat().getFieldInfosWriter().write(
+                tracker, info.info.name, Long.toString(gen, Character.MAX_RADIX),
+                new FieldInfos(fieldInfos.toArray(new FieldInfo[fieldInfos.size()])), IOContext.DEFAULT);
+        destDir.sync(tracker.getCreatedFiles());
+        return withGeneration(info, gen, tracker.getCreatedFiles());
+    }
+
+    // The attributes locate the postings of the field, while the DocValues format attributes are obsolete
+    private Map<String, String> withoutDocValuesFormat(Map<String, String> attributes) {
+        if (attributes == null) {
+            return null;
+        }
+        Map<String, String> kept = new HashMap<>(attributes);
+        kept.remove(PerFieldDocValuesFormat.PER_FIELD_FORMAT_KEY);
+        kept.remove(PerFieldDocValuesFormat.PER_FIELD_SUFFIX_KEY);
+        return kept;
+    }
+
+    /**
+     * Creates a segment description with a new generation of field descriptions and DocValues.
+     * @param info  the existing segment description.
+     * @param gen   the new generation, normally {@link SegmentCommitInfo#getNextFieldInfosGen()}.
+     * @param files the files written for the new generation.
+     * @return a new segment description.
+     */
+    static SegmentCommitInfo withGeneration(SegmentCommitInfo info, long gen, Set<String> files) {
+        SegmentCommitInfo updated = new SegmentCommitInfo(info.info, info.getDelCount(), info.getDelGen(), gen);
+        Map<Long, Set<String>> genFiles = new HashMap<>(info.getUpdatesFiles());
+        genFiles.put(gen, new HashSet<>(files));
+        updated.setGenUpdatesFiles(genFiles);
+        return updated;
+    }
+
+    /**
+     * @param codec the codec for a segment.
+     * @return true if the codec can write field descriptions, which is needed for adding or removing DocValues
+     *         without rewriting the segment.
+     */
+    static boolean canWriteFieldInfos(Codec codec) throws IOException {
+        try {
+            codec.fieldInfosFormat().getFieldInfosWriter();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    static SegmentReader getSegmentReader(AtomicReader reader) {
+        AtomicReader unwrapped = FilterAtomicReader.unwrap(reader);
+        if (!(unwrapped instanceof SegmentReader)) {
+            throw new IllegalStateException("Expected a SegmentReader but got " + unwrapped.getClass().getName());
+        }
+        return (SegmentReader)unwrapped;
+    }
+
+    private static File getFolder(Directory directory) {
+        if (!(directory instanceof FSDirectory)) {
+            throw new IllegalStateException(
+                    "Expected the segment to be stored in a FSDirectory but got " + directory.getClass().getName());
+        }
+        return ((FSDirectory)directory).getDirectory();
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Converts an index segment by segment, keeping track of which source segments have been converted.
+ * </p><p>
+ * Each source segment that needs conversion is converted to a separate part index, committed on its own. Parts
+ * from an earlier interrupted run with the same setup are re-used, so the work lost when a conversion fails is
+ * bounded by the segments being processed at the time of failure. When all parts are ready, they are added to
+ * the destination, hard linked if possible so that the data are not copied. The parts are stored in
+ * {@link #PARTS_FOLDER} inside the destination.
+ * </p><p>
+ * The destination commit user data holds a manifest with the name, the deletion generation and the field
+ * update generation of each converted source segment, together with the name of the destination segment it
+ * was converted to. Source segments without live documents have no destination segment. The destination does
+ * not merge segments, so the mapping stays valid.
+ * </p><p>
+ * In incremental mode, the destination is updated in place: Only source segments that are new or has updated
+ * fields are converted, destination segments for source segments that no longer exists (typically because they
+ * have been merged) are removed, and new deletions in the source are applied to the destination. To allow for
+ * the latter, deleted documents are kept during conversion and deleted afterwards in the destination, so that
+ * docIDs in source and destination segments are the same.
+ */
+public class SegmentwiseConverter {
+    private static Log log = LogFactory.getLog(SegmentwiseConverter.class);
+
+    private static final Version LUCENE_VERSION = Version.LUCENE_48;
+    private static final long M = 1000000;
+    // Manifest destination for source segments without any documents in the destination
+    private static final String NO_SEGMENT = "-";
+
+    /**
+     * Folder inside the destination used for holding converted segments during conversion.
+     */
+    public static final String PARTS_FOLDER = "dvenabler.parts";
+    /**
+     * Commit user data key for the field setup used for the conversion.
+     */
+    public static final String COMMIT_FIELDS = "dvenabler.fields";
+    /**
+     * Commit user data key for the manifest of converted source segments and their destination segments.
+     */
+    public static final String COMMIT_SEGMENTS = "dvenabler.segments";
+    /**
+     * Commit user data key used in parts, identifying the source segment and the setup.
+     */
+    public static final String COMMIT_SOURCE = "dvenabler.source";
+
+    private final IndexReader dvReader;
+    private final File destination;
+    private final File partsRoot;
+    private final Collection<DVConfig> dvConfigs;
+    private final String fields;
+    private final DVSettings settings;
+    private final boolean incremental;
+
+    /**
+     * @param dvReader    the source index, wrapped to provide the wanted DocValues.
+     * @param destination where the adjusted index should be stored.
+     * @param dvConfigs   the fields to adjust.
+     * @param settings    resource limits and mode for the conversion.
+     */
+    public SegmentwiseConverter(
+            IndexReader dvReader, File destination, Collection<DVConfig> dvConfigs, DVSettings settings) {
+        this.dvReader = dvReader;
+        this.destination = destination;
+        this.settings = settings;
+        incremental = settings.isIncremental();
+        partsRoot = new File(destination, PARTS_FOLDER);
+        this.dvConfigs = dvConfigs;
+        fields = getFieldsFingerprint(dvConfigs) + (incremental ? " incremental" : "");
+    }
+
+    /**
+     * Performs the conversion. This is a heavy operation.
+     * @throws IOException if the conversion failed. Running it again will continue from where it stopped.
+     */
+    public void convert() throws IOException {
+        final long startTime = System.nanoTime();
+        final List<SourceSegment> sources = new ArrayList<>(dvReader.leaves().size());
+        for (AtomicReaderContext leaf: dvReader.leaves()) {
+            sources.add(new SourceSegment(leaf));
+        }
+        Map<String, ManifestEntry> previous = getPreviousManifest();
+        if (previous != null && !incremental && !isEqual(previous, sources)) {
+            previous = null; // Full conversion
+        }
+
+        // Determine what to do
+        final List<SourceSegment> convert = new ArrayList<>();
+        final List<ManifestEntry> remove = new ArrayList<>();
+        final Map<SourceSegment, ManifestEntry> keep = new LinkedHashMap<>();
+        final Set<String> sourceNames = new HashSet<>();
+        for (SourceSegment source: sources) {
+            sourceNames.add(source.name);
+            ManifestEntry entry = previous == null ? null : previous.get(source.name);
+            if (entry == null) {
+                convert.add(source);
+            } else if (entry.fieldInfosGen != source.fieldInfosGen) { // Field updates
+                convert.add(source);
+                remove.add(entry);
+            } else {
+                keep.put(source, entry);
+            }
+        }
+        if (previous != null) {
+            for (ManifestEntry entry: previous.values()) {
+                if (!sourceNames.contains(entry.source)) {
+                    remove.add(entry);
+                }
+            }
+        }
+        int changedDeletions = 0;
+        for (Map.Entry<SourceSegment, ManifestEntry> entry: keep.entrySet()) {
+            if (entry.getKey().delGen != entry.getValue().delGen) {
+                changedDeletions++;
+            }
+        }
+        if (convert.isEmpty() && remove.isEmpty() && changedDeletions == 0) {
+            log.info("The destination " + destination + " is up to date with the " + sources.size()
+                     + " source segments. Nothing to do");
+            IndexUtils.delete(partsRoot);
+            return;
+        }
+        log.info("Converting " + convert.size() + "/" + sources.size() + " source segments to " + destination
+                 + (previous == null ? " from scratch" :
+                    ", removing " + remove.size() + " destination segments and updating deletions for "
+                    + changedDeletions + " destination segments"));
+
+        // Convert to parts
+        List<AtomicReaderContext> convertLeaves = new ArrayList<>(convert.size());
+        for (SourceSegment source: convert) {
+            convertLeaves.add(source.leaf);
+        }
+        IndexUtils.processSegments(convertLeaves, settings.getThreads(), new IndexUtils.SegmentTask() {
+            @Override
+            public void process(AtomicReaderContext leaf) throws IOException {
+                convertPart(new SourceSegment(leaf));
+            }
+        });
+        final long afterParts = System.nanoTime();
+        log.info("Finished converting " + convert.size() + " parts in " + (afterParts-startTime)/M + "ms");
+
+        // Update the destination
+        IndexWriter writer = new IndexWriter(
+                MMapDirectory.open(destination),
+                new IndexWriterConfig(LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION))
+                        .setOpenMode(previous == null ?
+                                             IndexWriterConfig.OpenMode.CREATE : IndexWriterConfig.OpenMode.APPEND)
+                        .setMergePolicy(NoMergePolicy.COMPOUND_FILES));
+        final List<IndexReader> readers = new ArrayList<>();
+        try {
+            Map<String, AtomicReader> destSegments = getSegments(writer, readers);
+            for (ManifestEntry entry: remove) {
+                if (!NO_SEGMENT.equals(entry.dest)) {
+                    deleteAll(writer, destSegments.get(entry.dest));
+                }
+            }
+            for (Map.Entry<SourceSegment, ManifestEntry> entry: keep.entrySet()) {
+                if (entry.getKey().delGen != entry.getValue().delGen && !NO_SEGMENT.equals(entry.getValue().dest)) {
+                    applyDeletions(writer, entry.getKey().leaf.reader(), destSegments.get(entry.getValue().dest));
+                }
+            }
+
+            final List<String> manifest = new ArrayList<>(sources.size());
+            for (Map.Entry<SourceSegment, ManifestEntry> entry: keep.entrySet()) {
+                manifest.add(new ManifestEntry(entry.getKey(), entry.getValue().dest).toString());
+            }
+            // Source order, so that the document order is preserved. The parts are added one at a time, so that
+            // the destination segment for each source segment is known
+            Set<String> before = new HashSet<>(getSegments(writer, readers).keySet());
+            for (SourceSegment source: convert) {
+                try (Directory part = new HardLinkDirectory(new File(partsRoot, source.name))) {
+                    writer.addIndexes(part);
+                }
+                final Map<String, AtomicReader> after = getSegments(writer, readers);
+                final List<String> added = new ArrayList<>(after.keySet());
+                added.removeAll(before);
+                if (added.size() > 1) {
+                    throw new IllegalStateException(
+                            "The part for source segment " + source.name + " resulted in " + added.size()
+                            + " destination segments " + added + ". Expected at most 1");
+                }
+                if (added.isEmpty()) { // Parts without live documents are not added by the writer
+                    log.info("Source segment " + source.name + " has no documents in the destination");
+                    manifest.add(new ManifestEntry(source, NO_SEGMENT).toString());
+                } else {
+                    if (incremental) {
+                        applyDeletions(writer, source.leaf.reader(), after.get(added.get(0)));
+                    }
+                    manifest.add(new ManifestEntry(source, added.get(0)).toString());
+                }
+                before = new HashSet<>(after.keySet());
+                close(readers); // One NRT reader per part would otherwise be kept open until the end
+            }
+
+            Map<String, String> commitData = new HashMap<>();
+            commitData.put(COMMIT_FIELDS, fields);
+            commitData.put(COMMIT_SEGMENTS, join(manifest));
+            writer.setCommitData(commitData);
+            writer.commit();
+        } finally {
+            close(readers);
+            writer.close();
+        }
+        IndexUtils.delete(partsRoot);
+        log.info("Updated " + destination + " with " + convert.size() + " parts in "
+                 + (System.nanoTime()-afterParts)/M + "ms");
+    }
+
+    /**
+     * Converts a single source segment to an index of its own. If the index already exists with the same setup,
+     * it is left untouched. Segments not affected by the adjustments are passed through without conversion.
+     */
+    private void convertPart(SourceSegment source) throws IOException {
+        final String sourceID = fields + " " + source.toString();
+        final File partFolder = new File(partsRoot, source.name);
+        final SegmentPassthrough passthrough;
+        try (Directory partDir = MMapDirectory.open(partFolder)) {
+            if (DirectoryReader.indexExists(partDir)) {
+                try (DirectoryReader part = DirectoryReader.open(partDir)) {
+                    if (sourceID.equals(part.getIndexCommit().getUserData().get(COMMIT_SOURCE))) {
+                        log.info("Segment " + source.name + " was converted by an earlier run. Skipping");
+                        return;
+                    }
+                }
+                log.info("Segment " + source.name + " was converted by an earlier run with another setup. "
+                         + "Converting again");
+            }
+            passthrough = new SegmentPassthrough(source.leaf.reader(), dvConfigs);
+            if (!passthrough.isPassthrough()) {
+                convertPart(source, partDir, sourceID);
+                return;
+            }
+        }
+        // Deletions are part of the passed through segment, so there is no need for the AllDocsReader
+        IndexUtils.delete(partFolder);
+        passthrough.createIndex(partFolder, Collections.singletonMap(COMMIT_SOURCE, sourceID));
+    }
+
+    // Converts the segment through an IndexWriter on the part
+    private void convertPart(SourceSegment source, Directory partDir, String sourceID) throws IOException {
+        final long startTime = System.nanoTime();
+        IndexWriter writer = new IndexWriter(
+                partDir, new IndexWriterConfig(LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION))
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE));
+        IndexUtils.addIndexesCached(
+                writer, settings, incremental ? new AllDocsReader(source.leaf.reader()) : source.leaf.reader());
+        writer.setCommitData(Collections.singletonMap(COMMIT_SOURCE, sourceID));
+        writer.commit();
+        writer.close();
+        log.info("Converted segment " + source.name + " with " + source.leaf.reader().maxDoc() + " docs in "
+                 + (System.nanoTime()-startTime)/M + "ms");
+    }
+
+    // Destination segments by name, in index order. The NRT reader is added to readers for later closing
+    private Map<String, AtomicReader> getSegments(IndexWriter writer, List<IndexReader> readers)
+            throws IOException {
+        Map<String, AtomicReader> segments = new LinkedHashMap<>();
+        DirectoryReader reader = DirectoryReader.open(writer, true);
+        readers.add(reader);
+        for (AtomicReaderContext leaf: reader.leaves()) {
+            segments.put(((SegmentReader)leaf.reader()).getSegmentName(), leaf.reader());
+        }
+        return segments;
+    }
+
+    private void close(List<IndexReader> readers) throws IOException {
+        for (IndexReader reader: readers) {
+            reader.close();
+        }
+        readers.clear();
+    }
+
+    private void deleteAll(IndexWriter writer, AtomicReader dest) throws IOException {
+        for (int docID = 0 ; docID < dest.maxDoc() ; docID++) {
+            delete(writer, dest, docID);
+        }
+    }
+
+    // Deletes the documents in dest that are deleted in source
+    private void applyDeletions(IndexWriter writer, AtomicReader source, AtomicReader dest) throws IOException {
+        if (source.maxDoc() != dest.maxDoc()) {
+            throw new IllegalStateException(
+                    "The source segment has " + source.maxDoc() + " documents while the destination segment has "
+                    + dest.maxDoc() + ". Deletions cannot be applied");
+        }
+        final Bits sourceLive = source.getLiveDocs();
+        final Bits destLive = dest.getLiveDocs();
+        if (sourceLive == null) {
+            return;
+        }
+        for (int docID = 0 ; docID < source.maxDoc() ; docID++) {
+            if (!sourceLive.get(docID) && (destLive == null || destLive.get(docID))) {
+                delete(writer, dest, docID);
+            }
+        }
+    }
+
+    private void delete(IndexWriter writer, AtomicReader dest, int docID) throws IOException {
+        if (!writer.tryDeleteDocument(dest, docID)) {
+            throw new IllegalStateException("Unable to delete document " + docID + " from " + dest);
+        }
+    }
+
+    // The manifest from the destination, if it is usable for updating the destination. Else null
+    private Map<String, ManifestEntry> getPreviousManifest() throws IOException {
+        if (!destination.exists()) {
+            return null;
+        }
+        try (Directory directory = MMapDirectory.open(destination)) {
+            if (!DirectoryReader.indexExists(directory)) {
+                return null;
+            }
+            SegmentInfos infos = new SegmentInfos();
+            infos.read(directory);
+            final Map<String, String> commitData = infos.getUserData();
+            if (!fields.equals(commitData.get(COMMIT_FIELDS)) || commitData.get(COMMIT_SEGMENTS) == null) {
+                log.info("The destination " + destination + " was not converted with the current setup");
+                return null;
+            }
+            final Set<String> destSegments = new HashSet<>();
+            for (SegmentCommitInfo info: infos) {
+                destSegments.add(info.info.name);
+            }
+            Map<String, ManifestEntry> manifest = new LinkedHashMap<>();
+            for (String entry: commitData.get(COMMIT_SEGMENTS).split(";")) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                ManifestEntry manifestEntry = new ManifestEntry(entry);
+                if (!NO_SEGMENT.equals(manifestEntry.dest) && !destSegments.contains(manifestEntry.dest)) {
+                    if (!incremental) {
+                        log.info("The destination " + destination + " does not match its manifest");
+                        return null;
+                    }
+                    // Fully deleted segments are dropped by the writer. The source segment is converted again
+                    continue;
+                }
+                manifest.put(manifestEntry.source, manifestEntry);
+            }
+            return manifest;
+        }
+    }
+
+    private boolean isEqual(Map<String, ManifestEntry> manifest, List<SourceSegment> sources) {
+        if (manifest.size() != sources.size()) {
+            return false;
+        }
+        for (SourceSegment source: sources) {
+            ManifestEntry entry = manifest.get(source.name);
+            if (entry == null || entry.delGen != source.delGen || entry.fieldInfosGen != source.fieldInfosGen) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Identifies the field setup, so that results from conversions with another setup are not re-used
+    private static String getFieldsFingerprint(Collection<DVConfig> dvConfigs) {
+        List<String> configs = new ArrayList<>(dvConfigs.size());
+        for (DVConfig dvConfig: dvConfigs) {
+            configs.add(dvConfig.toString(false));
+        }
+        Collections.sort(configs);
+        return join(configs);
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value: values) {
+            if (sb.length() != 0) {
+                sb.append(";");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A segment from the source index along with its generations.
+     */
+    private static class SourceSegment {
+        public final AtomicReaderContext leaf;
+        public final String name;
+        public final long delGen;
+        public final long fieldInfosGen;
+
+        public SourceSegment(AtomicReaderContext leaf) {
+            this.leaf = leaf;
+            AtomicReader unwrapped = FilterAtomicReader.unwrap(leaf.reader());
+            if (!(unwrapped instanceof SegmentReader)) {
+                throw new IllegalStateException("Expected a SegmentReader but got " + unwrapped.getClass().getName());
+            }
+            SegmentCommitInfo info = ((SegmentReader)unwrapped).getSegmentInfo();
+            name = info.info.name;
+            delGen = info.getDelGen();
+            fieldInfosGen = info.getFieldInfosGen();
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + delGen + ":" + fieldInfosGen;
+        }
+    }
+
+    /**
+     * A converted source segment, as stored in the manifest: {@code source:delGen:fieldInfosGen=dest}.
+     */
+    private static class ManifestEntry {
+        public final String source;
+        public final long delGen;
+        public final long fieldInfosGen;
+        public final String dest;
+
+        public ManifestEntry(SourceSegment source, String dest) {
+            this.source = source.name;
+            this.delGen = source.delGen;
+            this.fieldInfosGen = source.fieldInfosGen;
+            this.dest = dest;
+        }
+
+        public ManifestEntry(String entry) {
+            String[] tokens = entry.split("[:=]");
+            if (tokens.length != 4) {
+                throw new IllegalArgumentException("Invalid manifest entry '" + entry + "'");
+            }
+            source = tokens[0];
+            delGen = Long.parseLong(tokens[1]);
+            fieldInfosGen = Long.parseLong(tokens[2]);
+            dest = tokens[3];
+        }
+
+        @Override
+        public String toString() {
+            return source + ":" + delGen + ":" + fieldInfosGen + "=" + dest;
+        }
+    }
+
+    /**
+     * Exposes all documents, including the deleted ones, so that the docIDs are kept when the segment is added
+     * to another index.
+     */
+    private static class AllDocsReader extends FilterAtomicReader {
+        public AllDocsReader(AtomicReader in) {
+            super(in);
+        }
+
+        @Override
+        public Bits getLiveDocs() {
+            return null;
+        }
+
+        @Override
+        public int numDocs() {
+            return maxDoc();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.TrackingDirectoryWrapper;
+import org.apache.lucene.util.InfoStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adds DocValues to an index without rewriting the existing segment files.
+ * </p><p>
+ * The files of the source index are hard linked (or copied if linking is not possible) to the destination.
+ * For each segment with fields that needs DocValues, only the new DocValues and an updated field description are
+ * written, using the generation mechanism that Lucene uses for DocValues updates. The result is a plain Lucene
+ * index that can be read without any special codec setup. Output I/O is proportional to the new DocValues.
+ * </p><p>
+ * Limitations: Only adding DocValues to fields without DocValues is supported; removing or changing the type of
+ * existing DocValues requires a full conversion. The segments must be written with a codec that supports
+ * DocValues updates (Lucene 4.6+).
+ */
+public class SidecarConverter {
+    private static Log log = LogFactory.getLog(SidecarConverter.class);
+
+    private static final long M = 1000000;
+
+    private final DirectoryReader dvReader;
+    private final File source;
+    private final File destination;
+    private final Map<String, DVConfig> dvConfigs;
+    private final DVSettings settings;
+
+    /**
+     * @param dvReader    the source index, wrapped to provide the wanted DocValues.
+     * @param source      the location of the source index.
+     * @param destination where the adjusted index should be stored. Must not contain an index.
+     * @param dvConfigs   the fields to adjust.
+     * @param settings    resource limits for the conversion.
+     */
+    public SidecarConverter(DirectoryReader dvReader, File source, File destination,
+                            Collection<DVConfig> dvConfigs, DVSettings settings) {
+        this.dvReader = dvReader;
+        this.source = source;
+        this.destination = destination;
+        this.dvConfigs = new HashMap<>(dvConfigs.size());
+        for (DVConfig dvConfig: dvConfigs) {
+            this.dvConfigs.put(dvConfig.getName(), dvConfig);
+        }
+        this.settings = settings;
+    }
+
+    /**
+     * Performs the conversion.
+     * @throws IOException if the conversion failed.
+     */
+    public void convert() throws IOException {
+        final long startTime = System.nanoTime();
+        final IndexCommit commit = dvReader.getIndexCommit();
+        final Map<String, List<FieldInfo>> added = getAddedFields();
+
+        try (Directory sourceDir = new HardLinkDirectory(source);
+             final Directory destDir = MMapDirectory.open(destination)) {
+            if (DirectoryReader.indexExists(destDir)) {
+                throw new IllegalArgumentException(
+                        "Sidecar conversion requires a destination without an index, but " + destination
+                        + " contains an index");
+            }
+            if (!destination.exists() && !destination.mkdirs()) {
+                throw new IOException("Unable to create destination folder " + destination);
+            }
+            for (String file: commit.getFileNames()) {
+                if (!file.equals(commit.getSegmentsFileName())) {
+                    sourceDir.copy(destDir, file, file, IOContext.DEFAULT);
+                }
+            }
+            final long afterLink = System.nanoTime();
+            log.info("Linked " + commit.getFileNames().size() + " files from " + source + " to " + destination
+                     + " in " + (afterLink-startTime)/M + "ms");
+
+            final Map<String, SegmentCommitInfo> updated = new ConcurrentHashMap<>();
+            IndexUtils.processSegments(dvReader.leaves(), settings.getThreads(), new IndexUtils.SegmentTask() {
+                @Override
+                public void process(AtomicReaderContext leaf) throws IOException {
+                    SegmentCommitInfo info = SegmentPassthrough.getSegmentReader(leaf.reader()).getSegmentInfo();
+                    List<FieldInfo> fields = added.get(info.info.name);
+                    if (!fields.isEmpty()) {
+                        updated.put(info.info.name, writeDocValues(leaf.reader(), info, fields, destDir));
+                    }
+                }
+            });
+            final long afterDV = System.nanoTime();
+            log.info("Wrote DocValues for " + updated.size() + "/" + added.size() + " segments in "
+                     + (afterDV-afterLink)/M + "ms");
+
+            SegmentInfos sourceInfos = new SegmentInfos();
+            sourceInfos.read(sourceDir, commit.getSegmentsFileName());
+            SegmentInfos destInfos = new SegmentInfos();
+            destInfos.counter = sourceInfos.counter;
+            destInfos.version = sourceInfos.version;
+            destInfos.userData = new HashMap<>(sourceInfos.getUserData());
+            for (SegmentCommitInfo info: sourceInfos) {
+                destInfos.add(updated.containsKey(info.info.name) ? updated.get(info.info.name) : info);
+            }
+            SegmentInfosCommitter.commit(destInfos, destDir);
+            log.info("Committed " + destInfos.size() + " segments to " + destination + " in "
+                     + (System.nanoTime()-afterDV)/M + "ms");
+        }
+    }
+
+    /**
+     * Resolves the fields that should get DocValues for each segment and checks that this is possible.
+     * @return the field descriptions for the DocValues to add for each segment, with DocValues type set.
+     */
+    private Map<String, List<FieldInfo>> getAddedFields() throws IOException {
+        Map<String, List<FieldInfo>> added = new HashMap<>();
+        for (AtomicReaderContext leaf: dvReader.leaves()) {
+            SegmentReader segment = SegmentPassthrough.getSegmentReader(leaf.reader());
+            List<FieldInfo> fields = new ArrayList<>();
+            for (FieldInfo original: segment.getFieldInfos()) {
+                DVConfig dvConfig = dvConfigs.get(original.name);
+                if (dvConfig == null) {
+                    continue;
+                }
+                if (original.hasDocValues()) {
+                    if (dvConfig.getFieldInfo().getDocValuesType() != original.getDocValuesType()) {
+                        throw new IllegalArgumentException(
+                                "Sidecar conversion only supports adding DocValues, but field '" + original.name
+                                + "' in segment " + segment.getSegmentName() + " has DocValues "
+                                + original.getDocValuesType() + " and should have "
+                                + (dvConfig.hasDocValues() ? dvConfig.getFieldInfo().getDocValuesType() : "none"));
+                    }
+                    continue;
+                }
+                if (dvConfig.hasDocValues()) {
+                    fields.add(new FieldInfo(
+                            original.name, original.isIndexed(), original.number, original.hasVectors(),
+                            original.omitsNorms(), original.hasPayloads(), original.getIndexOptions(),
+                            dvConfig.getFieldInfo().getDocValuesType(), original.getNormType(),
+                            original.attributes() == null ? null : new HashMap<>(original.attributes())));
+                }
+            }
+            final Codec codec = segment.getSegmentInfo().info.getCodec();
+            if (!fields.isEmpty() && !SegmentPassthrough.canWriteFieldInfos(codec)) {
+                throw new IllegalArgumentException(
+                        "Segment " + segment.getSegmentName() + " uses codec " + codec.getName()
+                        + " which does not support adding DocValues. Use a full conversion instead");
+            }
+            added.put(segment.getSegmentName(), fields);
+        }
+        return added;
+    }
+
+    /**
+     * Writes the DocValues for the given fields as a new generation for the segment, along with an updated
+     * field description.
+     * @return the description of the segment with the new generation.
+     */
+    private SegmentCommitInfo writeDocValues(
+            AtomicReader reader, SegmentCommitInfo info, List<FieldInfo> fields, Directory destDir)
+            throws IOException {
+        final long startTime = System.nanoTime();
+        final long gen = info.getNextFieldInfosGen();
+        final String segmentSuffix = Long.toString(gen, Character.MAX_RADIX);
+        final Codec codec = info.info.getCodec();
+        final TrackingDirectoryWrapper tracker = new TrackingDirectoryWrapper(destDir);
+
+        Map<String, FieldInfo> fieldInfos = new TreeMap<>();
+        for (FieldInfo original: SegmentPassthrough.getSegmentReader(reader).getFieldInfos()) {
+            fieldInfos.put(original.name, original);
+        }
+        for (FieldInfo field: fields) {
+            field.setDocValuesGen(gen);
+            fieldInfos.put(field.name, field);
+        }
+
+        SegmentWriteState state = new SegmentWriteState(
+                InfoStream.getDefault(), tracker, info.info,
+                new FieldInfos(fields.toArray(new FieldInfo[fields.size()])), 0, null, IOContext.DEFAULT,
+                segmentSuffix);
+        DocValuesConsumer consumer = codec.docValuesFormat().fieldsConsumer(state);
+        try {
+            for (FieldInfo field: fields) {
+                addField(consumer, reader, field);
+            }
+        } finally {
+            consumer.close();
+        }
+        // Written after the DocValues as the per field DocValuesFormat adds attributes to the field descriptions
+        codec.fieldInfosFormat().getFieldInfosWriter().write(
+                tracker, info.info.name, segmentSuffix,
+                new FieldInfos(fieldInfos.values().toArray(new FieldInfo[fieldInfos.size()])), IOContext.DEFAULT);
+        destDir.sync(tracker.getCreatedFiles());
+
+        SegmentCommitInfo updated = SegmentPassthrough.withGeneration(info, gen, tracker.getCreatedFiles());
+        log.info("Wrote DocValues for " + fields.size() + " fields in segment " + info.info.name + " with "
+                 + reader.maxDoc() + " docs in " + (System.nanoTime()-startTime)/M + "ms");
+        return updated;
+    }
+
+    private void addField(DocValuesConsumer consumer, AtomicReader reader, FieldInfo field) throws IOException {
+        final String name = field.name;
+        final int maxDoc = reader.maxDoc();
+        switch (field.getDocValuesType()) {
+            case NUMERIC:
+                consumer.addNumericField(field, DocValuesIterables.numericValues(
+                        checkPresent(reader.getNumericDocValues(name), field), reader.getDocsWithField(name), maxDoc));
+                break;
+            case BINARY:
+                consumer.addBinaryField(field, DocValuesIterables.binaryValues(
+                        checkPresent(reader.getBinaryDocValues(name), field), reader.getDocsWithField(name), maxDoc));
+                break;
+            case SORTED:
+                // Separate instances as the consumer might iterate the values and the ords at the same time
+                consumer.addSortedField(
+                        field, DocValuesIterables.sortedValues(checkPresent(reader.getSortedDocValues(name), field)),
+                        DocValuesIterables.sortedOrds(reader.getSortedDocValues(name), maxDoc));
+                break;
+            case SORTED_SET:
+                consumer.addSortedSetField(
+                        field,
+                        DocValuesIterables.sortedSetValues(checkPresent(reader.getSortedSetDocValues(name), field)),
+                        DocValuesIterables.sortedSetOrdCounts(reader.getSortedSetDocValues(name), maxDoc),
+                        DocValuesIterables.sortedSetOrds(reader.getSortedSetDocValues(name), maxDoc));
+                break;
+            default: throw new UnsupportedOperationException(
+                    "DocValues type " + field.getDocValuesType() + " for field '" + name + "' is not supported");
+        }
+    }
+
+    private static <T> T checkPresent(T values, FieldInfo field) {
+        if (values == null) {
+            throw new IllegalStateException(
+                    "Unable to extract " + field.getDocValuesType() + " DocValues for field '" + field.name + "'");
+        }
+        return values;
+    }
+}
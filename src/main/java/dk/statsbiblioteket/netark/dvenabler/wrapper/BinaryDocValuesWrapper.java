@@ -0,0 +1,128 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PagedBytes;
+import org.apache.lucene.util.packed.MonotonicAppendingLongBuffer;
+
+/**
+ * Binary values for all documents, stored back to back in {@link PagedBytes} in docID order, with the start
+ * offset for each document in a monotonic packed structure. There is no dictionary, so there is no overhead
+ * for large or unique values. Documents without a value returns an empty value.
+ * </p><p>
+ * Values within a single page are referenced directly and values spanning pages are copied to a new array, as
+ * {@link PagedBytes.Reader#fillSlice} does. Instances are not thread safe. Use
+ * {@link #BinaryDocValuesWrapper(BinaryDocValuesWrapper)} to get another instance sharing the same values.
+ */
+public class BinaryDocValuesWrapper extends BinaryDocValues {
+    private static Log log = LogFactory.getLog(BinaryDocValuesWrapper.class);
+
+    private static final int BLOCK_BITS = 15;
+
+    private final PagedBytes bytes;
+    private final PagedBytes.Reader reader;
+    private final MonotonicAppendingLongBuffer offsets; // maxDoc+1 entries
+    private final PagedBytes.PagedBytesDataInput in;
+
+    /**
+     * @param bytes   the values for all documents, frozen.
+     * @param reader  the reader from freezing the bytes.
+     * @param offsets the start offset in bytes for all documents, followed by the end offset of the last value.
+     */
+    public BinaryDocValuesWrapper(PagedBytes bytes, PagedBytes.Reader reader, MonotonicAppendingLongBuffer offsets) {
+        this.bytes = bytes;
+        this.reader = reader;
+        this.offsets = offsets;
+        in = bytes.getDataInput();
+    }
+
+    public BinaryDocValuesWrapper(BinaryDocValuesWrapper other) {
+        this(other.bytes, other.reader, other.offsets);
+    }
+
+    @Override
+    public void get(int docID, BytesRef result) {
+        final long start = offsets.get(docID);
+        final int length = (int) (offsets.get(docID+1) - start);
+        if (length == 0 || start >>> BLOCK_BITS == (start + length - 1) >>> BLOCK_BITS) {
+            reader.fillSlice(result, start, length);
+            return;
+        }
+        in.setPosition(start);
+        result.bytes = new byte[length];
+        in.readBytes(result.bytes, 0, length);
+        result.offset = 0;
+        result.length = length;
+    }
+
+    public long ramBytesUsed() {
+        return reader.ramBytesUsed() + offsets.ramBytesUsed();
+    }
+
+    /**
+     * Streams the first stored value for each document to paged storage.
+     */
+    public static class Collector extends FieldCollector {
+        private final PagedBytes bytes = new PagedBytes(BLOCK_BITS);
+        private final PagedBytes.PagedBytesDataOutput out = bytes.getDataOutput();
+        private final MonotonicAppendingLongBuffer offsets = new MonotonicAppendingLongBuffer();
+        private BinaryDocValuesWrapper docValues = null;
+
+        public Collector(DVConfig dvConfig, int maxDoc) {
+            super(dvConfig, maxDoc);
+        }
+
+        @Override
+        public boolean isFirstValueOnly() {
+            return true;
+        }
+
+        @Override
+        protected void add(int docID, BytesRef value) {
+            if (docID < offsets.size()) {
+                return; // Only the first value is used
+            }
+            fill(docID);
+            offsets.add(out.getPosition());
+            out.writeBytes(value.bytes, value.offset, value.length);
+        }
+
+        // Adds empty values for documents without value, up to docID
+        private void fill(int docID) {
+            while (offsets.size() < docID) {
+                offsets.add(out.getPosition());
+            }
+        }
+
+        @Override
+        public void finish() {
+            fill(maxDoc + 1); // The extra entry is the end offset for the last value
+            offsets.freeze();
+            PagedBytes.Reader reader = bytes.freeze(true);
+            docValues = new BinaryDocValuesWrapper(bytes, reader, offsets);
+            log.info("Stored " + maxDoc + " binary values for field '" + dvConfig.getName() + "' ("
+                     + docValues.ramBytesUsed()/1024 + "KB)");
+        }
+
+        public BinaryDocValuesWrapper getDocValues() {
+            return new BinaryDocValuesWrapper(docValues);
+        }
+    }
+}
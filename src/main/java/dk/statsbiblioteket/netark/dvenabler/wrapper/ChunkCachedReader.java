@@ -0,0 +1,61 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import org.apache.lucene.codecs.compressing.StoredFieldsChunkCache;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+import java.io.IOException;
+
+/**
+ * Serves documents through a {@link StoredFieldsChunkCache}, for use as source for
+ * {@link org.apache.lucene.index.IndexWriter#addIndexes(org.apache.lucene.index.IndexReader...)}, which copies the
+ * stored fields of non-segment readers one document at a time.
+ * </p><p>
+ * Not thread safe: Only a single thread must request documents. Searches should use the wrapped reader directly.
+ * Closing the ChunkCachedReader releases the cache, but leaves the wrapped reader open.
+ */
+public class ChunkCachedReader extends FilterAtomicReader {
+    private final StoredFieldsChunkCache cache;
+
+    /**
+     * @param in     a reader for a single segment, typically a {@link DVAtomicReader}.
+     * @param budget the maximum number of bytes for decompressed chunks. 0 disables the cache.
+     * @throws IOException if the stored fields of the segment could not be opened.
+     */
+    public ChunkCachedReader(AtomicReader in, long budget) throws IOException {
+        super(in);
+        cache = budget == 0 ? null : StoredFieldsChunkCache.create(in, budget);
+    }
+
+    @Override
+    public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+        ensureOpen();
+        if (cache == null) {
+            in.document(docID, visitor);
+        } else {
+            cache.visitDocument(docID, visitor);
+        }
+    }
+
+    @Override
+    protected void doClose() throws IOException {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+}
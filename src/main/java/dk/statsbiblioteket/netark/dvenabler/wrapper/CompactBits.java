@@ -0,0 +1,150 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Chooses a representation for the documents with a field, based on the number of documents with the field.
+ * All or no documents are represented without any data. Few documents with or without the field are represented
+ * as a sorted and packed list of their docIDs, with lookups being binary searches. All other cases are
+ * represented as a bitmap.
+ * </p><p>
+ * The compressed DocIdSets in Lucene, such as WAH8DocIdSet, are not used as they do not support random access.
+ */
+public class CompactBits {
+    private static Log log = LogFactory.getLog(CompactBits.class);
+
+    /**
+     * The packed list is only used if it takes up at most this fraction of the bitmap, as lookups are slower.
+     */
+    public static final int MIN_REDUCTION = 2;
+
+    /**
+     * @param bits   the documents with a field, typically an {@link OpenBitSet}. Not modified.
+     * @param maxDoc the number of documents in the segment. The given bits might be longer.
+     * @return the given bits or a representation using less memory, with length maxDoc for all but the bitmap.
+     */
+    public static Bits compact(Bits bits, int maxDoc) {
+        final int count = cardinality(bits, maxDoc);
+        if (count == maxDoc) {
+            return new Bits.MatchAllBits(maxDoc);
+        }
+        if (count == 0) {
+            return new Bits.MatchNoBits(maxDoc);
+        }
+        final int bitsPerDoc = PackedInts.bitsRequired(maxDoc-1);
+        if ((long)count * bitsPerDoc * MIN_REDUCTION <= maxDoc) {
+            return log(new SparseBits(bits, maxDoc, count, true), bits);
+        }
+        if ((long)(maxDoc-count) * bitsPerDoc * MIN_REDUCTION <= maxDoc) {
+            return log(new SparseBits(bits, maxDoc, maxDoc-count, false), bits);
+        }
+        return bits;
+    }
+
+    private static Bits log(SparseBits compacted, Bits original) {
+        if (log.isDebugEnabled()) {
+            log.debug("Represented " + compacted.length() + " docs as " + compacted + ", using "
+                      + ramBytesUsed(compacted)/1024 + "KB instead of " + ramBytesUsed(original)/1024 + "KB");
+        }
+        return compacted;
+    }
+
+    // Bits beyond maxDoc are never set by the extractors
+    private static int cardinality(Bits bits, int maxDoc) {
+        if (bits instanceof OpenBitSet) {
+            return (int) ((OpenBitSet)bits).cardinality();
+        }
+        int count = 0;
+        for (int docID = 0 ; docID < maxDoc ; docID++) {
+            if (bits.get(docID)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param bits a representation of documents with a field.
+     * @return approximate heap usage for the representation.
+     */
+    public static long ramBytesUsed(Bits bits) {
+        if (bits instanceof Bits.MatchAllBits || bits instanceof Bits.MatchNoBits) {
+            return 0;
+        }
+        if (bits instanceof SparseBits) {
+            return ((SparseBits)bits).docIDs.ramBytesUsed();
+        }
+        if (bits instanceof OpenBitSet) {
+            return RamUsageEstimator.sizeOf(((OpenBitSet)bits).getBits());
+        }
+        return (bits.length() + 7) / 8;
+    }
+
+    /**
+     * Sorted docIDs for the documents that are set or, if inverted, the documents that are not set.
+     */
+    private static class SparseBits implements Bits {
+        private final PackedInts.Mutable docIDs;
+        private final boolean set;
+        private final int length;
+
+        public SparseBits(Bits bits, int maxDoc, int count, boolean set) {
+            this.set = set;
+            length = maxDoc;
+            docIDs = PackedInts.getMutable(count, PackedInts.bitsRequired(length-1), PackedInts.COMPACT);
+            int index = 0;
+            for (int docID = 0 ; docID < length ; docID++) {
+                if (bits.get(docID) == set) {
+                    docIDs.set(index++, docID);
+                }
+            }
+        }
+
+        @Override
+        public boolean get(int docID) {
+            int low = 0;
+            int high = docIDs.size()-1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final long candidate = docIDs.get(mid);
+                if (candidate < docID) {
+                    low = mid + 1;
+                } else if (candidate > docID) {
+                    high = mid - 1;
+                } else {
+                    return set;
+                }
+            }
+            return !set;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return "SparseBits(" + docIDs.size() + " docs " + (set ? "with" : "without") + " the field)";
+        }
+    }
+}
@@ -15,23 +15,30 @@
 package dk.statsbiblioteket.netark.dvenabler.wrapper;
 
 import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import dk.statsbiblioteket.netark.dvenabler.DVSettings;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 import org.apache.lucene.index.*;
 import org.apache.lucene.util.Bits;
-import org.apache.lucene.util.OpenBitSet;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
- * Wraps a given AtomicReader and exposes the stored values in the stated fields as DocValues.
+ * Wraps a given AtomicReader and exposes the stored values or the terms in the stated fields as DocValues.
  */
 public class DVAtomicReader extends FilterAtomicReader {
     private static Log log = LogFactory.getLog(DVAtomicReader.class);
 
     private final Map<String, DVConfig> dvConfigs;
-    private final HashMap<String, Bits> dvContent = new HashMap<>();
+    private final DVSettings settings;
+    private final DocValuesCache cache;
+    private final Object segmentKey; // The core cache key for segment readers, else the DVAtomicReader itself
+    private final int deletedDocs; // Skipped by extractions, so only DocValues with at most this many are usable
     private final long constructionTime = System.nanoTime();
 
     @Override
@@ -80,42 +87,210 @@ public class DVAtomicReader extends FilterAtomicReader {
      *                 Fields in the innerReader not specified in dvConfigs are passed unmodified.
      */
     public DVAtomicReader(AtomicReader innerReader, Set<DVConfig> dvConfigs) {
+        this(innerReader, dvConfigs, new DVSettings());
+    }
+
+    /**
+     * Creates an adjusting reader; removing or/and adding DocValues for the specified fields.
+     * @param innerReader the reader to wrap.
+     * @param dvConfigs a list of fields to adjust.
+     *                 Fields in the innerReader not specified in dvConfigs are passed unmodified.
+     * @param settings resource limits for the DocValues extraction.
+     */
+    public DVAtomicReader(AtomicReader innerReader, Set<DVConfig> dvConfigs, DVSettings settings) {
+        this(innerReader, dvConfigs, settings, new DocValuesCache(settings.getCacheMB() * 1048576L));
+    }
+
+    /**
+     * Creates an adjusting reader; removing or/and adding DocValues for the specified fields.
+     * @param innerReader the reader to wrap.
+     * @param dvConfigs a list of fields to adjust.
+     *                 Fields in the innerReader not specified in dvConfigs are passed unmodified.
+     * @param settings resource limits for the DocValues extraction.
+     * @param cache holds the extracted DocValues. Normally shared between all segments in an index.
+     *              If the innerReader is a segment reader, extracted DocValues are shared with other
+     *              DVAtomicReaders for the same segment core using the same cache.
+     */
+    public DVAtomicReader(AtomicReader innerReader, Set<DVConfig> dvConfigs, DVSettings settings,
+                          DocValuesCache cache) {
         super(innerReader);
+        this.settings = settings;
+        this.cache = cache;
         this.dvConfigs = new HashMap<>(dvConfigs.size());
         for (DVConfig dvConfig: dvConfigs) {
             this.dvConfigs.put(dvConfig.getName(), dvConfig);
         }
+        AtomicReader unwrapped = FilterAtomicReader.unwrap(innerReader);
+        if (unwrapped instanceof SegmentReader) {
+            segmentKey = unwrapped.getCoreCacheKey();
+            ((SegmentReader)unwrapped).addCoreClosedListener(cache); // Added only once per core as it is a Set
+        } else {
+            segmentKey = this;
+        }
+        deletedDocs = innerReader.numDeletedDocs();
         log.info("Wrapped AtomicReader with " + maxDoc() + " docs and " + dvConfigs.size() + " field adjustments");
     }
 
-    // Should have been named docsWithDocValueEntriesForField
-    // Creates a bitmap of the documents that has stored values and should have DocValues
-    @Override
-    public synchronized Bits getDocsWithField(final String field) throws IOException {
-        if (!dvConfigs.containsKey(field)) {
-            return super.getDocsWithField(field);
+    /**
+     * Returns the cached DocValues for the field, the stored DocValues if {@link DVSettings#getCacheDir()} is
+     * specified, or extracts them. All fields from the same source that are neither cached, stored nor being
+     * extracted are extracted in the same pass, as specified by {@link DVConfig#getSource()}, and stored if
+     * possible. Requests for a field that is being extracted waits for that extraction, while requests for other
+     * fields are not blocked.
+     * @param field a field needing DocValues.
+     * @return the extracted DocValues for the field.
+     * @throws IOException if the values could not be extracted.
+     */
+    private ExtractedField getExtracted(String field) throws IOException {
+        while (true) {
+            ExtractedField extracted = cache.get(segmentKey, field, deletedDocs);
+            if (extracted != null) {
+                return extracted;
+            }
+            Future<Map<String, ExtractedField>> pending = cache.getPending(segmentKey, field, deletedDocs);
+            if (pending != null) { // Being extracted by another thread
+                return getResult(pending).get(field);
+            }
+            final PersistentDocValues persistent = getPersistentDocValues();
+            if (persistent != null) {
+                extracted = getStored(persistent, dvConfigs.get(field));
+                if (extracted != null) {
+                    cache.put(segmentKey, Collections.singletonList(extracted));
+                    return extracted;
+                }
+            }
+            final DVConfig.Source source = dvConfigs.get(field).getSource();
+            List<DVConfig> candidates = new ArrayList<>();
+            for (DVConfig dvConfig: getExtractionConfigs(source)) {
+                if (field.equals(dvConfig.getName()) || persistent == null
+                    || !persistent.contains(dvConfig, deletedDocs)) {
+                    candidates.add(dvConfig);
+                }
+            }
+            ExtractionPass extraction = new ExtractionPass(source, persistent);
+            FutureTask<Map<String, ExtractedField>> pass = new FutureTask<>(extraction);
+            extraction.extractConfigs = cache.register(segmentKey, field, deletedDocs, candidates, pass);
+            if (extraction.extractConfigs == null) {
+                continue; // Cached or being extracted by another thread since the checks above
+            }
+            try {
+                pass.run();
+            } finally {
+                cache.unregister(segmentKey, deletedDocs, extraction.extractConfigs);
+            }
+            return getResult(pass).get(field);
+        }
+    }
+
+    /**
+     * Extracts DocValues for the fields registered for the pass, stores them if possible and adds them to the cache.
+     */
+    private class ExtractionPass implements Callable<Map<String, ExtractedField>> {
+        private final DVConfig.Source source;
+        private final PersistentDocValues persistent;
+        private List<DVConfig> extractConfigs; // Assigned when the pass is registered
+
+        public ExtractionPass(DVConfig.Source source, PersistentDocValues persistent) {
+            this.source = source;
+            this.persistent = persistent;
         }
 
-        if (!dvContent.containsKey(field)) {
-            log.info("Resolving docsWithField(" + field + ")");
-            long startTime = System.nanoTime();
-            DVConfig dvConfig = dvConfigs.get(field);
-            if (!dvConfig.hasDocValues()) {
-                dvContent.put(field, null);
-            } else {
-                OpenBitSet hasContent = new OpenBitSet(maxDoc());
-                final Set<String> FIELDS = new HashSet<>(Arrays.asList(field));
-                for (int docID = 0 ; docID < maxDoc() ; docID++) {
-                     if (document(docID, FIELDS).getField(field) != null) {
-                         hasContent.fastSet(docID);
-                     }
+        @Override
+        public Map<String, ExtractedField> call() throws IOException {
+            DocValuesExtractor extractor = source == DVConfig.Source.POSTINGS ?
+                    new PostingsExtractor(in, extractConfigs) : new StoredFieldExtractor(in, extractConfigs, settings);
+            extractor.extract();
+            List<ExtractedField> fields = new ArrayList<>(extractConfigs.size());
+            for (DVConfig dvConfig: extractConfigs) {
+                fields.add(ExtractedField.create(extractor, dvConfig, maxDoc(), deletedDocs));
+            }
+            if (persistent != null) {
+                try {
+                    fields = persistent.write(fields);
+                } catch (IOException e) {
+                    log.warn("Unable to store extracted DocValues in " + persistent + ". Keeping them on the heap", e);
                 }
-                dvContent.put(field, hasContent);
             }
-            log.info("Resolved docsWithField(" + field + ") for " + maxDoc() + " docs in "
-                     + (System.nanoTime()-startTime)/1000000 + "ms");
+            Map<String, ExtractedField> result = new HashMap<>(fields.size());
+            for (ExtractedField extractedField: fields) {
+                result.put(extractedField.getDVConfig().getName(), extractedField);
+            }
+            cache.put(segmentKey, fields);
+            log.debug("Extracted " + extractConfigs.size() + " fields from " + source + ". " + cache);
+            return result;
         }
-        return dvContent.get(field);
+    }
+
+    private <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for DocValues extraction", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException("Exception extracting DocValues", e.getCause());
+        }
+    }
+
+    // Problems with stored DocValues are logged and resolved by extracting the DocValues again
+    private ExtractedField getStored(PersistentDocValues persistent, DVConfig dvConfig) {
+        try {
+            return persistent.get(dvConfig, deletedDocs);
+        } catch (IOException e) {
+            log.warn("Unable to open stored DocValues for field '" + dvConfig.getName() + "' in " + persistent
+                     + ". The DocValues will be extracted again", e);
+            return null;
+        }
+    }
+
+    /**
+     * Ensures that the DocValues for all fields needing extraction are cached or stored, extracting them if needed.
+     * @throws IOException if the values could not be extracted.
+     */
+    public void warm() throws IOException {
+        for (DVConfig.Source source: DVConfig.Source.values()) {
+            for (DVConfig dvConfig: getExtractionConfigs(source)) {
+                getExtracted(dvConfig.getName()); // The first field extracts all fields from the source
+            }
+        }
+    }
+
+    private List<DVConfig> getExtractionConfigs(DVConfig.Source source) {
+        List<DVConfig> extract = new ArrayList<>();
+        for (DVConfig dvConfig: dvConfigs.values()) {
+            if (dvConfig.getSource() == source && needsExtraction(dvConfig.getName())) {
+                extract.add(dvConfig);
+            }
+        }
+        return extract;
+    }
+
+    // True if the field should have DocValues but the inner reader does not provide them
+    private boolean needsExtraction(String field) {
+        if (!dvConfigs.containsKey(field) || !dvConfigs.get(field).hasDocValues()) {
+            return false;
+        }
+        FieldInfo original = in.getFieldInfos().fieldInfo(field);
+        return original == null || !original.hasDocValues();
+    }
+
+    // Should have been named docsWithDocValueEntriesForField
+    // Returns a bitmap of the documents that has stored values or terms and should have DocValues
+    @Override
+    public Bits getDocsWithField(final String field) throws IOException {
+        if (!dvConfigs.containsKey(field)) {
+            return super.getDocsWithField(field);
+        } else if (!dvConfigs.get(field).hasDocValues()) {
+            return null;
+        } else if (!needsExtraction(field)) {
+            return super.getDocsWithField(field);
+        }
+        return getExtracted(field).getDocsWithField();
     }
 
     @Override
@@ -131,10 +306,10 @@ public class DVAtomicReader extends FilterAtomicReader {
             log.info("getNumericDocValues called for field '" + field + "'. DV already present, returning directly");
             return dv;
         }
-        log.info("getNumericDocValues called for field '" + field + "' with no DV. Constructing from stored");
-        // TODO: Infer whether this is long, int, double or float
+        log.info("getNumericDocValues called for field '" + field + "' with no DV. Constructing from "
+                 + dvConfigs.get(field).getSource());
         long startTime = System.nanoTime();
-        NumericDocValues dvs = new NumericDocValuesWrapper(this, dvConfigs.get(field));
+        NumericDocValues dvs = getExtracted(field).getNumericDocValues();
         log.info("getNumericDocValues(" + field + ") for " + maxDoc() + " docs prepared in "
                  + (System.nanoTime()-startTime)/1000000 + "ms");
         return dvs;
@@ -148,15 +323,18 @@ public class DVAtomicReader extends FilterAtomicReader {
         } else if (!dvConfigs.get(field).hasDocValues()) {
             return null;
         }
-        // TODO: Implement this
         BinaryDocValues dv = super.getBinaryDocValues(field);
         if (dv != null) {
             log.info("getBinaryDocValues called for field '" + field + "'. DV already present, returning directly");
             return dv;
         }
-        log.warn("getBinaryDocValues called for field '" + field + "' with no DV. Not implemented yet!");
-        // TODO: Implement this
-        return null;
+        log.info("getBinaryDocValues called for field '" + field + "' with no DV. Constructing from "
+                 + dvConfigs.get(field).getSource());
+        long startTime = System.nanoTime();
+        BinaryDocValues dvs = getExtracted(field).getBinaryDocValues();
+        log.info("getBinaryDocValues(" + field + ") for " + maxDoc() + " docs prepared in "
+                 + (System.nanoTime()-startTime)/1000000 + "ms");
+        return dvs;
     }
 
     @Override
@@ -172,9 +350,10 @@ public class DVAtomicReader extends FilterAtomicReader {
             log.info("getSortedDocValues called for field '" + field + "'. DV already present, returning directly");
             return dv;
         }
-        log.info("getSortedDocValues called for field '" + field + "' with no DV. Constructing from stored");
+        log.info("getSortedDocValues called for field '" + field + "' with no DV. Constructing from "
+                 + dvConfigs.get(field).getSource());
         long startTime = System.nanoTime();
-        SortedDocValues dvs = new SortedDocValuesWrapper(this, dvConfigs.get(field));
+        SortedDocValues dvs = getExtracted(field).getSortedDocValues();
         log.info("getSortedDocValues(" + field + ") for " + maxDoc() + " docs prepared in "
                  + (System.nanoTime()-startTime)/1000000 + "ms");
         return dvs;
@@ -193,17 +372,40 @@ public class DVAtomicReader extends FilterAtomicReader {
             log.info("getSortedSetDocValues called for field '" + field + "'. DV already present, returning directly");
             return dv;
         }
-        log.info("getSortedSetDocValues called for field '" + field + "' with no DV. Constructing from stored");
+        log.info("getSortedSetDocValues called for field '" + field + "' with no DV. Constructing from "
+                 + dvConfigs.get(field).getSource());
         long startTime = System.nanoTime();
-        SortedSetDocValues dvs = new SortedSetDocValuesWrapper(this, dvConfigs.get(field));
+        SortedSetDocValues dvs = getExtracted(field).getSortedSetDocValues();
         log.info("getSortedSetDocValues(" + field + ") for " + maxDoc() + " docs prepared in "
                  + (System.nanoTime()-startTime)/1000000 + "ms");
         return dvs;
     }
 
+    /**
+     * @return the stored DocValues for the segment or null if {@link DVSettings#getCacheDir()} is not specified
+     *         or the DocValues cannot be stored for the segment. Shared between readers for the same segment.
+     * @throws IOException if the storage for the segment could not be prepared.
+     */
+    public PersistentDocValues getPersistentDocValues() throws IOException {
+        return settings.getCacheDir() == null ? null : cache.getPersistent(segmentKey, settings.getCacheDir(), in);
+    }
+
     @Override
     protected void doClose() throws IOException {
         log.info("Close called " + (System.nanoTime()-constructionTime)/1000000 + "ms after construction");
+        release();
         super.doClose();
     }
+
+    /**
+     * Called on close and by {@link DVDirectoryReader} on close, as the segment readers of a DirectoryReader are not
+     * closed individually. The cached and stored DocValues are released when the segment core is closed, unless the
+     * inner reader is not a segment reader, in which case they are released here.
+     * @throws IOException if the stored DocValues could not be closed.
+     */
+    void release() throws IOException {
+        if (segmentKey == this) {
+            cache.remove(this);
+        }
+    }
 }
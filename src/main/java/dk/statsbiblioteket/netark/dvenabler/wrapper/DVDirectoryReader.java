@@ -15,19 +15,28 @@
 package dk.statsbiblioteket.netark.dvenabler.wrapper;
 
 import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import dk.statsbiblioteket.netark.dvenabler.DVSettings;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 import org.apache.lucene.index.*;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Future;
 
 /**
  * Wraps the standard DirectoryReader from Lucene and simulates DocValues for selected fields by extracting them from stored fields.
  * Note that the extraction can be very memory-heavy, primarily for String fields.
+ * </p><p>
+ * If {@link DVSettings#getWarmupThreads()} is above 0, DocValues for all segments are extracted in the background
+ * when the reader is opened or reopened. Use {@link #getWarmup()} to wait for the extraction to finish.
  */
 public class DVDirectoryReader extends FilterDirectoryReader {
     private static Log log = LogFactory.getLog(DVDirectoryReader.class);
     private final Set<DVConfig> dvConfigs;
+    private final DVSettings settings;
+    private final DocValuesCache cache;
+    private final DocValuesWarmer warmer;
 
     /**
      * Creates an adjusting reader; removing or/and adding DocValues for the specified fields.
@@ -35,28 +44,108 @@ public class DVDirectoryReader extends FilterDirectoryReader {
      * @param dvConfigs the fields to adjust DocValues for.
      */
     public DVDirectoryReader(DirectoryReader innerReader, Set<DVConfig> dvConfigs) {
-        super(innerReader, new TransformingAtomicReaderWrapper(dvConfigs));
+        this(innerReader, dvConfigs, new DVSettings());
+    }
+
+    /**
+     * Creates an adjusting reader; removing or/and adding DocValues for the specified fields.
+     * @param innerReader the reader to wrap.
+     * @param dvConfigs the fields to adjust DocValues for.
+     * @param settings resource limits for the DocValues extraction.
+     */
+    public DVDirectoryReader(DirectoryReader innerReader, Set<DVConfig> dvConfigs, DVSettings settings) {
+        this(innerReader, dvConfigs, settings, new DocValuesCache(settings.getCacheMB() * 1048576L));
+    }
+
+    /**
+     * Creates an adjusting reader; removing or/and adding DocValues for the specified fields.
+     * @param innerReader the reader to wrap.
+     * @param dvConfigs the fields to adjust DocValues for.
+     * @param settings resource limits for the DocValues extraction.
+     * @param cache holds the extracted DocValues for all segments.
+     */
+    public DVDirectoryReader(
+            DirectoryReader innerReader, Set<DVConfig> dvConfigs, DVSettings settings, DocValuesCache cache) {
+        super(innerReader, new TransformingAtomicReaderWrapper(dvConfigs, settings, cache));
         this.dvConfigs = dvConfigs;
-        log.info("Constructed DVDirectoryReader with " + dvConfigs + " DocValue field adjustments");
+        this.settings = settings;
+        this.cache = cache;
+        warmer = settings.getWarmupThreads() == 0 ? null :
+                new DocValuesWarmer(getDVSegments(), settings.getWarmupThreads());
+        log.info("Constructed DVDirectoryReader with " + dvConfigs + " DocValue field adjustments and " + settings);
+    }
+
+    private List<DVAtomicReader> getDVSegments() {
+        List<DVAtomicReader> segments = new ArrayList<>();
+        for (AtomicReader reader: getSequentialSubReaders()) {
+            if (reader instanceof DVAtomicReader) {
+                segments.add((DVAtomicReader)reader);
+            }
+        }
+        return segments;
     }
 
     @Override
     protected DirectoryReader doWrapDirectoryReader(DirectoryReader in) {
         log.info("Wrapping DirectoryReader with " + dvConfigs + " field adjustments");
-        return new DVDirectoryReader(in, dvConfigs);
+        return new DVDirectoryReader(in, dvConfigs, settings, cache);
+    }
+
+    @Override
+    protected void doClose() throws IOException {
+        try {
+            if (warmer != null) {
+                warmer.cancel(false);
+                warmer.await();
+            }
+            for (DVAtomicReader reader: getDVSegments()) {
+                reader.release();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for running warm-up to finish", e);
+        } finally {
+            super.doClose();
+        }
+    }
+
+    /**
+     * @return the background extraction of DocValues for all segments, which is done when all DocValues are
+     *         extracted. Null if {@link DVSettings#getWarmupThreads()} is 0.
+     */
+    public Future<Void> getWarmup() {
+        return warmer;
+    }
+
+    /**
+     * @return the cache for extracted DocValues, shared with readers from {@link #openIfChanged}.
+     */
+    public DocValuesCache getCache() {
+        return cache;
     }
 
     public static class TransformingAtomicReaderWrapper extends SubReaderWrapper {
         private final Set<DVConfig> dvConfigs;
+        private final DVSettings settings;
+        private final DocValuesCache cache;
 
         public TransformingAtomicReaderWrapper(Set<DVConfig> dvConfigs) {
+            this(dvConfigs, new DVSettings());
+        }
+
+        public TransformingAtomicReaderWrapper(Set<DVConfig> dvConfigs, DVSettings settings) {
+            this(dvConfigs, settings, new DocValuesCache(settings.getCacheMB() * 1048576L));
+        }
+
+        public TransformingAtomicReaderWrapper(Set<DVConfig> dvConfigs, DVSettings settings, DocValuesCache cache) {
             this.dvConfigs = dvConfigs;
+            this.settings = settings;
+            this.cache = cache;
         }
 
         @Override
         public AtomicReader wrap(AtomicReader reader) {
             log.debug("Wrapping AtomicReader with " + reader.maxDoc() + " docs");
-            return new DVAtomicReader(reader, dvConfigs);
+            return new DVAtomicReader(reader, dvConfigs, settings, cache);
         }
     }
 }
@@ -0,0 +1,298 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.SegmentReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Future;
+
+/**
+ * Holds extracted DocValues per (segment, field) so that repeated requests does not trigger new extractions.
+ * The cache is shared between the segment readers of a {@link DVDirectoryReader} and has a single heap budget.
+ * Segments are identified by their core cache key, so the DocValues for a segment are re-used by the readers
+ * from {@link DVDirectoryReader#openIfChanged}. The entries for a segment are removed when the core of the
+ * segment is closed, which the cache is notified about as a {@link SegmentReader.CoreClosedListener}.
+ * </p><p>
+ * Readers for the same segment core can have different deletions and the extracted DocValues are only valid for
+ * readers with at least the same number of deleted documents, see {@link ExtractedField}. A variant is cached for
+ * each number of deleted documents that DocValues has been extracted for and requests are served by the usable
+ * variant with the most deleted documents.
+ * </p><p>
+ * Ongoing extractions are registered per (segment, field, deleted documents), so that concurrent requests for a
+ * field being extracted wait for that extraction, while requests for other fields proceed independently.
+ * When the budget is exceeded, the least recently requested fields are evicted and will be extracted again if
+ * requested. Fields added together, which are the result of a single extraction pass, are never evicted by
+ * that addition, so the budget might be exceeded temporarily.
+ * </p><p>
+ * Evicted DocValues that are still in use by a searcher remains valid until they are no longer referenced.
+ */
+public class DocValuesCache implements SegmentReader.CoreClosedListener {
+    private static Log log = LogFactory.getLog(DocValuesCache.class);
+
+    private final long budget;
+    private final LinkedHashMap<Key, ExtractedField> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // The deleted documents for the cached variants of each (segment, field), for locating the usable variant
+    private final Map<Key, TreeSet<Integer>> variants = new HashMap<>();
+    private final Map<Key, Future<Map<String, ExtractedField>>> pending = new HashMap<>();
+    private final Map<Object, PersistentDocValues> persistent = new IdentityHashMap<>(); // Values can be null
+    private long bytesUsed = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param budget the maximum number of bytes to use for the cached DocValues.
+     */
+    public DocValuesCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @param segment     the owner of the DocValues.
+     * @param field       the field to get DocValues for.
+     * @param deletedDocs the number of deleted documents for the requesting reader.
+     * @return the cached DocValues or null if no DocValues usable for the reader are in the cache.
+     */
+    public synchronized ExtractedField get(Object segment, String field, int deletedDocs) {
+        Key key = getUsable(segment, field, deletedDocs);
+        ExtractedField extracted = key == null ? null : entries.get(key);
+        if (extracted == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return extracted;
+    }
+
+    /**
+     * Checks if usable DocValues for the field are present, without affecting eviction order and statistics.
+     * @param segment     the owner of the DocValues.
+     * @param field       the field to check.
+     * @param deletedDocs the number of deleted documents for the requesting reader.
+     * @return true if DocValues for the field, usable for the reader, are cached.
+     */
+    public synchronized boolean contains(Object segment, String field, int deletedDocs) {
+        return getUsable(segment, field, deletedDocs) != null;
+    }
+
+    // The key for the cached variant with the most deleted documents that is usable for the reader
+    private Key getUsable(Object segment, String field, int deletedDocs) {
+        TreeSet<Integer> fieldVariants = variants.get(new Key(segment, field, Key.ALL_VARIANTS));
+        Integer usable = fieldVariants == null ? null : fieldVariants.floor(deletedDocs);
+        return usable == null ? null : new Key(segment, field, usable);
+    }
+
+    /**
+     * @param segment     the owner of the DocValues.
+     * @param field       the field to get DocValues for.
+     * @param deletedDocs the number of deleted documents for the requesting reader.
+     * @return the ongoing extraction pass for the field for readers with the same number of deleted documents or
+     *         null if there is no such extraction.
+     */
+    public synchronized Future<Map<String, ExtractedField>> getPending(Object segment, String field, int deletedDocs) {
+        return pending.get(new Key(segment, field, deletedDocs));
+    }
+
+    /**
+     * Registers an extraction pass for the field, unless the field is cached or being extracted. Candidates that
+     * are neither cached nor being extracted are included in the pass. The pass must call
+     * {@link #put(Object, Collection)} with the result before it completes and {@link #unregister} must be called
+     * when it has completed, successfully or not.
+     * @param segment     the owner of the DocValues.
+     * @param field       the requested field.
+     * @param deletedDocs the number of deleted documents for the extracting reader.
+     * @param candidates  fields that can be extracted in the same pass as the requested field.
+     * @param pass        the extraction pass, delivering the result per field name.
+     * @return the fields to extract in the pass or null if the field is cached or being extracted.
+     */
+    public synchronized List<DVConfig> register(Object segment, String field, int deletedDocs,
+                                                List<DVConfig> candidates, Future<Map<String, ExtractedField>> pass) {
+        if (getUsable(segment, field, deletedDocs) != null
+            || pending.containsKey(new Key(segment, field, deletedDocs))) {
+            return null;
+        }
+        List<DVConfig> claimed = new ArrayList<>(candidates.size());
+        for (DVConfig candidate: candidates) {
+            Key key = new Key(segment, candidate.getName(), deletedDocs);
+            if (field.equals(candidate.getName())
+                || (getUsable(segment, candidate.getName(), deletedDocs) == null && !pending.containsKey(key))) {
+                pending.put(key, pass);
+                claimed.add(candidate);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Removes the registration of a completed extraction pass.
+     * @param segment     the owner of the DocValues.
+     * @param deletedDocs the number of deleted documents given to {@link #register}.
+     * @param fields      the fields returned by {@link #register}.
+     */
+    public synchronized void unregister(Object segment, int deletedDocs, List<DVConfig> fields) {
+        for (DVConfig field: fields) {
+            pending.remove(new Key(segment, field.getName(), deletedDocs));
+        }
+    }
+
+    /**
+     * Adds the result of an extraction pass, evicting earlier entries if the budget is exceeded.
+     * @param segment   the owner of the DocValues.
+     * @param extracted the extracted DocValues for one or more fields.
+     */
+    public synchronized void put(Object segment, Collection<ExtractedField> extracted) {
+        for (ExtractedField field: extracted) {
+            Key key = new Key(segment, field.getDVConfig().getName(), field.getDeletedDocs());
+            ExtractedField old = entries.put(key, field);
+            if (old != null) {
+                bytesUsed -= old.ramBytesUsed();
+            }
+            bytesUsed += field.ramBytesUsed();
+            TreeSet<Integer> fieldVariants = variants.get(key.allVariants());
+            if (fieldVariants == null) {
+                fieldVariants = new TreeSet<>();
+                variants.put(key.allVariants(), fieldVariants);
+            }
+            fieldVariants.add(key.deletedDocs);
+        }
+        // The new entries are last in the iteration order
+        Iterator<Map.Entry<Key, ExtractedField>> oldest = entries.entrySet().iterator();
+        int evictable = entries.size() - extracted.size();
+        for ( ; bytesUsed > budget && evictable > 0 ; evictable--) {
+            Map.Entry<Key, ExtractedField> entry = oldest.next();
+            oldest.remove();
+            removeVariant(entry.getKey());
+            bytesUsed -= entry.getValue().ramBytesUsed();
+            evictions++;
+            log.debug("Evicted DocValues for field '" + entry.getKey().field + "' ("
+                      + entry.getValue().ramBytesUsed()/1024 + "KB) to stay within the budget of "
+                      + budget/1048576 + "MB");
+        }
+    }
+
+    private void removeVariant(Key key) {
+        TreeSet<Integer> fieldVariants = variants.get(key.allVariants());
+        if (fieldVariants != null) {
+            fieldVariants.remove(key.deletedDocs);
+            if (fieldVariants.isEmpty()) {
+                variants.remove(key.allVariants());
+            }
+        }
+    }
+
+    /**
+     * Returns the stored DocValues for the segment, opening them on first request. The stored DocValues are
+     * shared between all readers for the segment and closed when the segment is removed.
+     * @param segment  the owner of the DocValues.
+     * @param cacheDir the folder holding stored DocValues for all segments in the index.
+     * @param reader   a reader for the segment.
+     * @return the stored DocValues for the segment or null if DocValues cannot be stored for the reader.
+     * @throws IOException if the storage for the segment could not be prepared.
+     */
+    public synchronized PersistentDocValues getPersistent(Object segment, File cacheDir, AtomicReader reader)
+            throws IOException {
+        if (!persistent.containsKey(segment)) {
+            persistent.put(segment, PersistentDocValues.open(cacheDir, reader));
+        }
+        return persistent.get(segment);
+    }
+
+    /**
+     * Removes all DocValues for the given segment and closes the stored DocValues for the segment.
+     * @param segment the owner of the DocValues.
+     * @throws IOException if the stored DocValues could not be closed.
+     */
+    public void remove(Object segment) throws IOException {
+        PersistentDocValues stored;
+        synchronized (this) {
+            Iterator<Map.Entry<Key, ExtractedField>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, ExtractedField> entry = it.next();
+                if (entry.getKey().segment == segment) {
+                    it.remove();
+                    removeVariant(entry.getKey());
+                    bytesUsed -= entry.getValue().ramBytesUsed();
+                }
+            }
+            stored = persistent.remove(segment);
+        }
+        if (stored != null) {
+            stored.close();
+        }
+    }
+
+    /**
+     * Called by Lucene when the core of a segment is closed, after which the segment cannot be requested again.
+     * @param ownerCoreCacheKey the core cache key for the segment.
+     */
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+        try {
+            remove(ownerCoreCacheKey);
+        } catch (IOException e) {
+            log.warn("Unable to close stored DocValues for closed segment " + ownerCoreCacheKey, e);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long ramBytesUsed() {
+        return bytesUsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DocValuesCache(entries=" + entries.size() + ", used=" + bytesUsed/1048576 + "MB, budget="
+               + budget/1048576 + "MB, hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ")";
+    }
+
+    private static class Key {
+        public static final int ALL_VARIANTS = -1; // Used for the variants of a (segment, field)
+
+        private final Object segment;
+        private final String field;
+        private final int deletedDocs;
+
+        public Key(Object segment, String field, int deletedDocs) {
+            this.segment = segment;
+            this.field = field;
+            this.deletedDocs = deletedDocs;
+        }
+
+        public Key allVariants() {
+            return new Key(segment, field, ALL_VARIANTS);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key)o).segment == segment && ((Key)o).field.equals(field)
+                   && ((Key)o).deletedDocs == deletedDocs;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(segment) * 31 + field.hashCode()) * 31 + deletedDocs;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+
+/**
+ * Constructs DocValues for a set of fields in a segment from another representation of the field content.
+ * {@link #extract()} must be called before the DocValues are requested.
+ */
+public abstract class DocValuesExtractor {
+
+    /**
+     * Performs the extraction for all fields. This is a heavy operation.
+     * @throws IOException if the source content could not be read.
+     */
+    public abstract void extract() throws IOException;
+
+    public abstract Bits getDocsWithField(String field);
+
+    public abstract NumericDocValuesWrapper getNumericDocValues(String field);
+
+    public abstract BinaryDocValuesWrapper getBinaryDocValues(String field);
+
+    public abstract SortedDocValuesWrapper getSortedDocValues(String field);
+
+    public abstract SortedSetDocValuesWrapper getSortedSetDocValues(String field);
+}
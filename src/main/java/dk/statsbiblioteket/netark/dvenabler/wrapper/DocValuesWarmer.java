@@ -0,0 +1,168 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the DocValues for all adjusted fields in the given segments in the background, largest segments first,
+ * so that the first search requesting the DocValues does not pay for the extraction.
+ * </p><p>
+ * The warmer is a Future that is done when all segments are warmed. {@link #get()} throws the first problem
+ * encountered while warming, if any. Segments that are already warmed, e.g. when reopening an index, are skipped
+ * quickly as their DocValues are cached. Note that warming more fields than fits in the budget for the
+ * {@link DocValuesCache} evicts the DocValues from the first segments.
+ */
+public class DocValuesWarmer implements Future<Void> {
+    private static Log log = LogFactory.getLog(DocValuesWarmer.class);
+
+    private final List<Future<Void>> futures;
+    private final AtomicInteger remaining;
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Starts warming the segments.
+     * @param segments the segments to warm.
+     * @param threads  the number of segments to warm concurrently.
+     */
+    public DocValuesWarmer(List<DVAtomicReader> segments, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be at least 1 but was " + threads);
+        }
+        final List<DVAtomicReader> sorted = new ArrayList<>(segments);
+        // The pool processes tasks in submission order, so largest first avoids a single big segment at the end
+        Collections.sort(sorted, new Comparator<DVAtomicReader>() {
+            @Override
+            public int compare(DVAtomicReader o1, DVAtomicReader o2) {
+                return Integer.compare(o2.maxDoc(), o1.maxDoc());
+            }
+        });
+        remaining = new AtomicInteger(sorted.size());
+        futures = new ArrayList<>(sorted.size());
+        if (sorted.isEmpty()) {
+            return;
+        }
+        log.info("Warming " + sorted.size() + " segments using " + Math.min(threads, sorted.size()) + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, sorted.size()));
+        try {
+            for (final DVAtomicReader segment: sorted) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            segment.warm();
+                        } catch (Exception e) {
+                            log.warn("Exception warming segment with " + segment.maxDoc() + " docs", e);
+                            throw e;
+                        } finally {
+                            if (remaining.decrementAndGet() == 0) {
+                                log.info("Finished warming " + futures.size() + " segments in "
+                                         + (System.nanoTime()-startTime)/1000000 + "ms");
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+        } finally {
+            executor.shutdown(); // Submitted tasks are still executed
+        }
+    }
+
+    /**
+     * Cancels the warming of all segments that have not been warmed yet.
+     * @param mayInterruptIfRunning if true, the threads warming segments are interrupted. As interrupting I/O
+     *                              might close the underlying files, false is recommended.
+     * @return true if warming of at least one segment was cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = false;
+        for (Future<Void> future: futures) {
+            cancelled |= future.cancel(mayInterruptIfRunning);
+        }
+        return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        for (Future<Void> future: futures) {
+            if (future.isCancelled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        for (Future<Void> future: futures) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        for (Future<Void> future: futures) {
+            future.get();
+        }
+        return null;
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Future<Void> future: futures) {
+            future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        return null;
+    }
+
+    /**
+     * Waits for all segments to be warmed, cancelled or failed, without reporting problems.
+     * Used before closing the warmed reader, as a running warm-up cannot be stopped safely.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        for (Future<Void> future: futures) {
+            try {
+                future.get();
+            } catch (ExecutionException | CancellationException e) {
+                // Already logged or intended
+            }
+        }
+    }
+
+    /**
+     * @return the number of segments not warmed yet.
+     */
+    public int getRemaining() {
+        return remaining.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DocValuesWarmer(segments=" + futures.size() + ", remaining=" + remaining.get() + ")";
+    }
+}
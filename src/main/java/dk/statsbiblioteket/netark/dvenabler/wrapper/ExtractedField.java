@@ -0,0 +1,179 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+
+/**
+ * The extracted DocValues for a single field in a single segment, as held by {@link DocValuesCache}.
+ * The DocValues are handed out as new instances sharing the extracted data, so the ExtractedField is thread safe.
+ * </p><p>
+ * The DocValues are either held on the heap, as created by {@link #create(DocValuesExtractor, DVConfig, int, int)},
+ * or memory mapped from storage by {@link PersistentDocValues}.
+ * </p><p>
+ * Deleted documents are skipped during extraction, so the DocValues are only valid for readers of the segment with
+ * at least the same deletions. As deletions in a segment only grow, that is the case for readers with at least the
+ * same number of deleted documents.
+ */
+public abstract class ExtractedField {
+    protected final DVConfig dvConfig;
+    protected final int deletedDocs;
+
+    protected ExtractedField(DVConfig dvConfig, int deletedDocs) {
+        this.dvConfig = dvConfig;
+        this.deletedDocs = deletedDocs;
+    }
+
+    /**
+     * @param extractor   an extractor where {@link DocValuesExtractor#extract()} has been called.
+     * @param dvConfig    the setup for a field handled by the extractor.
+     * @param maxDoc      the number of documents in the segment.
+     * @param deletedDocs the number of deleted documents that were skipped by the extractor.
+     * @return the extracted DocValues for the field, held on the heap.
+     */
+    public static ExtractedField create(DocValuesExtractor extractor, DVConfig dvConfig, int maxDoc, int deletedDocs) {
+        return new HeapField(extractor, dvConfig, maxDoc, deletedDocs);
+    }
+
+    public abstract Bits getDocsWithField() throws IOException;
+
+    public abstract NumericDocValues getNumericDocValues() throws IOException;
+
+    public abstract BinaryDocValues getBinaryDocValues() throws IOException;
+
+    public abstract SortedDocValues getSortedDocValues() throws IOException;
+
+    public abstract SortedSetDocValues getSortedSetDocValues() throws IOException;
+
+    /**
+     * @return approximate heap usage for the extracted DocValues.
+     */
+    public abstract long ramBytesUsed();
+
+    public DVConfig getDVConfig() {
+        return dvConfig;
+    }
+
+    /**
+     * @return the number of deleted documents in the segment when the DocValues were extracted.
+     */
+    public int getDeletedDocs() {
+        return deletedDocs;
+    }
+
+    /**
+     * @param type      the requested DocValues type.
+     * @param docValues the DocValues held for the type.
+     * @return the given docValues or null if the field does not have DocValues of the requested type.
+     * @throws IllegalArgumentException if the field has the requested type, but the DocValues were never extracted.
+     */
+    protected <T> T check(FieldInfo.DocValuesType type, T docValues) {
+        if (dvConfig.getFieldInfo().getDocValuesType() != type) {
+            return null;
+        }
+        if (docValues == null) {
+            throw new IllegalArgumentException(
+                    "The DocValues of type " + type + " for field '" + dvConfig.getName() + "' were not extracted");
+        }
+        return docValues;
+    }
+
+    private static class HeapField extends ExtractedField {
+        private final Bits docsWithField;
+        private final NumericDocValuesWrapper numeric;
+        private final BinaryDocValuesWrapper binary;
+        private final SortedDocValuesWrapper sorted;
+        private final SortedSetDocValuesWrapper sortedSet;
+        private final long ramBytesUsed;
+
+        public HeapField(DocValuesExtractor extractor, DVConfig dvConfig, int maxDoc, int deletedDocs) {
+            super(dvConfig, deletedDocs);
+            final String field = dvConfig.getName();
+            docsWithField = CompactBits.compact(extractor.getDocsWithField(field), maxDoc);
+            long bytes = CompactBits.ramBytesUsed(docsWithField);
+            NumericDocValuesWrapper numeric = null;
+            BinaryDocValuesWrapper binary = null;
+            SortedDocValuesWrapper sorted = null;
+            SortedSetDocValuesWrapper sortedSet = null;
+            switch (dvConfig.getFieldInfo().getDocValuesType()) {
+                case NUMERIC:
+                    numeric = extractor.getNumericDocValues(field);
+                    bytes += numeric.ramBytesUsed();
+                    break;
+                case BINARY:
+                    binary = extractor.getBinaryDocValues(field);
+                    bytes += binary.ramBytesUsed();
+                    break;
+                case SORTED:
+                    sorted = extractor.getSortedDocValues(field);
+                    bytes += sorted.ramBytesUsed();
+                    break;
+                case SORTED_SET:
+                    sortedSet = extractor.getSortedSetDocValues(field);
+                    bytes += sortedSet.ramBytesUsed();
+                    break;
+                default: throw new IllegalArgumentException(
+                        "Unsupported DocValues type " + dvConfig.getFieldInfo().getDocValuesType()
+                        + " for field '" + field + "'");
+            }
+            this.numeric = numeric;
+            this.binary = binary;
+            this.sorted = sorted;
+            this.sortedSet = sortedSet;
+            ramBytesUsed = bytes;
+        }
+
+        @Override
+        public Bits getDocsWithField() {
+            return docsWithField;
+        }
+
+        @Override
+        public NumericDocValues getNumericDocValues() {
+            return check(FieldInfo.DocValuesType.NUMERIC, numeric); // Stateless, so the instance is shared
+        }
+
+        @Override
+        public BinaryDocValues getBinaryDocValues() {
+            BinaryDocValuesWrapper values = check(FieldInfo.DocValuesType.BINARY, binary);
+            return values == null ? null : new BinaryDocValuesWrapper(values);
+        }
+
+        @Override
+        public SortedDocValues getSortedDocValues() {
+            SortedDocValuesWrapper values = check(FieldInfo.DocValuesType.SORTED, sorted);
+            return values == null ? null : new SortedDocValuesWrapper(values);
+        }
+
+        @Override
+        public SortedSetDocValues getSortedSetDocValues() {
+            SortedSetDocValuesWrapper values = check(FieldInfo.DocValuesType.SORTED_SET, sortedSet);
+            return values == null ? null : new SortedSetDocValuesWrapper(values);
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return ramBytesUsed;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.UnicodeUtil;
+
+import java.io.IOException;
+
+/**
+ * Receives the stored values for a single field during the extraction pass of {@link StoredFieldExtractor}.
+ * Values are delivered in increasing docID order. After {@link #finish()} the collector holds the data needed
+ * for constructing the DocValues for the field.
+ */
+public abstract class FieldCollector {
+    protected final DVConfig dvConfig;
+    protected final int maxDoc;
+    private final OpenBitSet docsWithField;
+    private final BytesRef textScratch = new BytesRef();
+
+    protected FieldCollector(DVConfig dvConfig, int maxDoc) {
+        this.dvConfig = dvConfig;
+        this.maxDoc = maxDoc;
+        docsWithField = new OpenBitSet(maxDoc);
+    }
+
+    /**
+     * Called for each stored textual or binary value for the field. Multi-valued fields result in multiple calls
+     * for the same docID.
+     * @param docID the document containing the value.
+     * @param value the stored value as UTF-8 for text. Only valid during the call.
+     * @throws IOException if the value could not be collected.
+     */
+    public void collect(int docID, BytesRef value) throws IOException {
+        docsWithField.fastSet(docID);
+        add(docID, value);
+    }
+
+    /**
+     * Called for each stored int or long value for the field.
+     * @param docID the document containing the value.
+     * @param value the stored value.
+     * @throws IOException if the value could not be collected.
+     */
+    public void collect(int docID, long value) throws IOException {
+        docsWithField.fastSet(docID);
+        add(docID, value);
+    }
+
+    /**
+     * Called for each stored float value for the field.
+     * @param docID the document containing the value.
+     * @param value the stored value.
+     * @throws IOException if the value could not be collected.
+     */
+    public void collect(int docID, float value) throws IOException {
+        docsWithField.fastSet(docID);
+        add(docID, value);
+    }
+
+    /**
+     * Called for each stored double value for the field.
+     * @param docID the document containing the value.
+     * @param value the stored value.
+     * @throws IOException if the value could not be collected.
+     */
+    public void collect(int docID, double value) throws IOException {
+        docsWithField.fastSet(docID);
+        add(docID, value);
+    }
+
+    /**
+     * @return true if only the first value for each document is used. The extractor uses this to skip decoding
+     *         of further values and to stop reading a document when all fields has been seen.
+     */
+    public boolean isFirstValueOnly() {
+        return false;
+    }
+
+    protected abstract void add(int docID, BytesRef value) throws IOException;
+
+    // Numbers for textual fields are represented as their String value, as with IndexableField#stringValue()
+
+    protected void add(int docID, long value) throws IOException {
+        addText(docID, Long.toString(value));
+    }
+
+    protected void add(int docID, float value) throws IOException {
+        addText(docID, Float.toString(value));
+    }
+
+    protected void add(int docID, double value) throws IOException {
+        addText(docID, Double.toString(value));
+    }
+
+    private void addText(int docID, String text) throws IOException {
+        UnicodeUtil.UTF16toUTF8(text, 0, text.length(), textScratch);
+        add(docID, textScratch);
+    }
+
+    /**
+     * Called when all documents has been visited. Override to post-process the collected values.
+     * @throws IOException if post-processing failed.
+     */
+    public void finish() throws IOException { }
+
+    public Bits getDocsWithField() {
+        return docsWithField;
+    }
+
+    public DVConfig getDVConfig() {
+        return dvConfig;
+    }
+}
@@ -18,58 +18,202 @@ import dk.statsbiblioteket.netark.dvenabler.DVConfig;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.index.*;
-
-import java.io.IOException;
-import java.util.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.packed.AppendingDeltaPackedLongBuffer;
+import org.apache.lucene.util.packed.PackedInts;
 
 /**
- * Simple indirection wrapper. Only downside is speed.
+ * Numeric values for all documents, extracted up front by {@link StoredFieldExtractor} or {@link PostingsExtractor}.
+ * The values are stored as offsets from the minimum value, packed with the number of bits needed for the
+ * span between the minimum and the maximum value. Documents without a value returns 0.
  */
 public class NumericDocValuesWrapper extends NumericDocValues {
     private static Log log = LogFactory.getLog(NumericDocValuesWrapper.class);
 
-    private final AtomicReader reader;
-    private final DVConfig dvConfig;
-    private final Set<String> FIELDS; // Contains {@link #field} and nothing else
-    private final ProgressTracker tracker;
+    private final long minValue;
+    private final PackedInts.Reader values;
 
-    public NumericDocValuesWrapper(AtomicReader reader, DVConfig dvConfig) throws IOException {
-        this.reader = reader;
-        this.dvConfig = dvConfig;
-        FIELDS = new HashSet<>(Arrays.asList(dvConfig.getName()));
-        tracker = new ProgressTracker(dvConfig.getName(), log, reader.maxDoc());
+    /**
+     * @param minValue the base for all values.
+     * @param values   the values for all documents, relative to minValue.
+     */
+    public NumericDocValuesWrapper(long minValue, PackedInts.Reader values) {
+        this.minValue = minValue;
+        this.values = values;
     }
 
     @Override
     public long get(int docID) {
-        tracker.ping(docID);
-        try {
-            IndexableField iField = reader.document(docID, FIELDS).getField(dvConfig.getName());
-            if (iField == null) {
-                log.warn("No stored value for field '" + dvConfig.getName() + "' in doc " + docID
-                         + ". Returning -1");
-                // This should have been handled by {@link DVAtomicReader#getDocsWithField}
-                return -1;
+        return minValue + values.get(docID);
+    }
+
+    public long ramBytesUsed() {
+        return values.ramBytesUsed();
+    }
+
+    /**
+     * @param minValue the smallest value to represent.
+     * @param maxValue the largest value to represent.
+     * @return the number of bits needed to represent {@code maxValue-minValue}.
+     */
+    public static int bitsRequired(long minValue, long maxValue) {
+        final long span = maxValue - minValue;
+        return span < 0 ? 64 : PackedInts.bitsRequired(span); // span < 0 means overflow
+    }
+
+    /**
+     * Converts a stored number to its DocValues representation.
+     * @param number   a stored numeric value.
+     * @param dvConfig the setup for the field containing the value.
+     * @return the number as used by NumericDocValues.
+     */
+    public static long toDocValue(Number number, DVConfig dvConfig) {
+        switch (dvConfig.getNumericType()) {
+            case LONG: return number.longValue();
+            case INT: return number.intValue();
+            case DOUBLE: return Double.doubleToLongBits(number.doubleValue());
+            case FLOAT: return Float.floatToIntBits(number.floatValue());
+            default: throw new IllegalStateException(
+                    "Unknown NumericType " + dvConfig.getNumericType() + " for field " + dvConfig.getName());
+        }
+    }
+
+    /**
+     * Converts a stored int or long to its DocValues representation without boxing. The result is the same as
+     * {@link #toDocValue(Number, DVConfig)}.
+     * @param value    a stored integer value.
+     * @param dvConfig the setup for the field containing the value.
+     * @return the number as used by NumericDocValues.
+     */
+    public static long toDocValue(long value, DVConfig dvConfig) {
+        switch (dvConfig.getNumericType()) {
+            case LONG: return value;
+            case INT: return (int) value;
+            case DOUBLE: return Double.doubleToLongBits((double) value);
+            case FLOAT: return Float.floatToIntBits((float) value);
+            default: throw new IllegalStateException(
+                    "Unknown NumericType " + dvConfig.getNumericType() + " for field " + dvConfig.getName());
+        }
+    }
+
+    /**
+     * Converts a stored float or double to its DocValues representation without boxing. The result is the same
+     * as {@link #toDocValue(Number, DVConfig)}.
+     * @param value    a stored floating point value.
+     * @param dvConfig the setup for the field containing the value.
+     * @return the number as used by NumericDocValues.
+     */
+    public static long toDocValue(double value, DVConfig dvConfig) {
+        switch (dvConfig.getNumericType()) {
+            case LONG: return (long) value;
+            case INT: return (int) value;
+            case DOUBLE: return Double.doubleToLongBits(value);
+            case FLOAT: return Float.floatToIntBits((float) value);
+            default: throw new IllegalStateException(
+                    "Unknown NumericType " + dvConfig.getNumericType() + " for field " + dvConfig.getName());
+        }
+    }
+
+    /**
+     * Converts a full precision (shift 0) trie term to its DocValues representation. The result is the same as
+     * {@link #toDocValue(Number, DVConfig)} for the stored value.
+     * @param term     a prefix coded term with shift 0.
+     * @param dvConfig the setup for the field containing the term.
+     * @return the number as used by NumericDocValues.
+     */
+    public static long termToDocValue(BytesRef term, DVConfig dvConfig) {
+        switch (dvConfig.getNumericType()) {
+            case LONG: return NumericUtils.prefixCodedToLong(term);
+            case INT: return NumericUtils.prefixCodedToInt(term);
+            case DOUBLE: return Double.doubleToLongBits(
+                    NumericUtils.sortableLongToDouble(NumericUtils.prefixCodedToLong(term)));
+            case FLOAT: return Float.floatToIntBits(
+                    NumericUtils.sortableIntToFloat(NumericUtils.prefixCodedToInt(term)));
+            default: throw new IllegalStateException(
+                    "Unknown NumericType " + dvConfig.getNumericType() + " for field " + dvConfig.getName());
+        }
+    }
+
+    /**
+     * Collects the first stored value for each document and packs the values when finished.
+     */
+    public static class Collector extends FieldCollector {
+        // Values are added in docID order, so an appending buffer keeps memory usage low until finish
+        private final AppendingDeltaPackedLongBuffer buffer = new AppendingDeltaPackedLongBuffer(PackedInts.COMPACT);
+        private long minValue = Long.MAX_VALUE;
+        private long maxValue = Long.MIN_VALUE;
+        private NumericDocValuesWrapper docValues = null;
+
+        public Collector(DVConfig dvConfig, int maxDoc) {
+            super(dvConfig, maxDoc);
+        }
+
+        @Override
+        public boolean isFirstValueOnly() {
+            return true;
+        }
+
+        @Override
+        protected void add(int docID, BytesRef value) {
+            throw new RuntimeException(
+                    "No numeric value '" + value.utf8ToString() + "' for field '" + dvConfig.getName()
+                    + "' in doc " + docID + ". This looks like a non-numeric field!");
+        }
+
+        @Override
+        protected void add(int docID, long value) {
+            if (docID < buffer.size()) {
+                return; // Only the first value is used
             }
-            Number number = iField.numericValue();
-            if (number == null) {
-                throw new RuntimeException(
-                        "No numeric value '" + iField.stringValue() + "' for field '" + dvConfig.getName()
-                         + "' in doc " + docID + ". This looks like a non-numeric field!");
+            append(docID, toDocValue(value, dvConfig));
+        }
+
+        @Override
+        protected void add(int docID, float value) {
+            add(docID, (double) value); // Widening is exact, so FLOAT fields gets the original bits back
+        }
+
+        @Override
+        protected void add(int docID, double value) {
+            if (docID < buffer.size()) {
+                return; // Only the first value is used
             }
-            // TODO: Determine correct method to call from field info
-            switch (dvConfig.getNumericType()) {
-                case LONG: return number.longValue();
-                case INT: return number.intValue();
-                case DOUBLE: return Double.doubleToLongBits(number.doubleValue());
-                case FLOAT: return Float.floatToIntBits(number.longValue());
-                default: throw new IllegalStateException(
-                        "Unknown NumericType " + dvConfig.getNumericType() + " for field " + dvConfig.getName());
+            append(docID, toDocValue(value, dvConfig));
+        }
+
+        private void append(int docID, long value) {
+            while (buffer.size() < docID) {
+                buffer.add(0); // Documents without value
+                minValue = Math.min(minValue, 0);
+                maxValue = Math.max(maxValue, 0);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(
-                    "Unable to get field '" + dvConfig.getName() + "' from docID " + docID, e);
+            buffer.add(value);
+            minValue = Math.min(minValue, value);
+            maxValue = Math.max(maxValue, value);
+        }
+
+        @Override
+        public void finish() {
+            while (buffer.size() < maxDoc) {
+                append((int) buffer.size(), 0);
+            }
+            buffer.freeze();
+            if (maxDoc == 0) {
+                minValue = maxValue = 0;
+            }
+            final int bits = bitsRequired(minValue, maxValue);
+            PackedInts.Mutable packed = PackedInts.getMutable(maxDoc, bits, PackedInts.DEFAULT);
+            for (int docID = 0 ; docID < maxDoc ; docID++) {
+                packed.set(docID, buffer.get(docID) - minValue);
+            }
+            docValues = new NumericDocValuesWrapper(minValue, packed);
+            log.info("Packed " + maxDoc + " numeric values for field '" + dvConfig.getName() + "' with "
+                     + bits + " bits/value (" + packed.ramBytesUsed()/1024 + "KB)");
         }
-    }
 
+        public NumericDocValuesWrapper getDocValues() {
+            return docValues;
+        }
+    }
 }
@@ -0,0 +1,434 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import dk.statsbiblioteket.netark.dvenabler.DocValuesIterables;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.TrackingDirectoryWrapper;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Constants;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.InfoStream;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores extracted DocValues for a single segment on disk and memory maps them back in, so that a restart does not
+ * require a new extraction and so that the DocValues are held off-heap.
+ * </p><p>
+ * The DocValues for a segment are stored in a folder named from the segment name, using the Lucene45 DocValues
+ * format. The number of deleted documents skipped when extracting is stored with the DocValues, which are only
+ * served to readers with at least as many deleted documents, see {@link ExtractedField}. Each extraction pass is
+ * written as a separate set of files along with a small field description, which is written last so that an
+ * interrupted write is ignored. The folder is discarded if the number of documents or the creation time of the
+ * segment does not match, e.g. if the index has been rebuilt. Folders for segments that no longer exists in the
+ * index are not removed.
+ * </p><p>
+ * A cache folder should only be used for a single index and a single process at a time.
+ */
+public class PersistentDocValues implements Closeable {
+    private static Log log = LogFactory.getLog(PersistentDocValues.class);
+
+    public static final String FORMAT = "Lucene45";
+    private static final String SEGMENT_FILE = "segment.properties";
+    private static final String FIELDS_EXTENSION = ".fields";
+    private static final String DELETED_DOCS = "deletedDocs"; // Pass property. Field properties all contain a dot
+    private static final AtomicInteger passCounter = new AtomicInteger(0);
+
+    private final File folder;
+    private final String segmentName;
+    private final int maxDoc;
+    private final MMapDirectory directory;
+    private final SegmentInfo segmentInfo;
+    private final DocValuesFormat format = DocValuesFormat.forName(FORMAT);
+    private final Map<String, List<Entry>> entries = new HashMap<>();
+    private final Map<String, DocValuesProducer> producers = new HashMap<>(); // Opened on first request
+    private int loaded = 0;
+    private int written = 0;
+
+    /**
+     * @param cacheDir the folder holding stored DocValues for all segments in the index.
+     * @param reader   a segment reader, optionally wrapped.
+     * @return the stored DocValues for the segment or null if the reader is not a segment reader.
+     * @throws IOException if the folder for the segment could not be prepared.
+     */
+    public static PersistentDocValues open(File cacheDir, AtomicReader reader) throws IOException {
+        AtomicReader unwrapped = FilterAtomicReader.unwrap(reader);
+        if (!(unwrapped instanceof SegmentReader)) {
+            log.info("Unable to store DocValues for " + unwrapped.getClass().getName() + " as it is not a segment");
+            return null;
+        }
+        return new PersistentDocValues(cacheDir, ((SegmentReader)unwrapped).getSegmentInfo());
+    }
+
+    private PersistentDocValues(File cacheDir, SegmentCommitInfo info) throws IOException {
+        final long startTime = System.nanoTime();
+        segmentName = info.info.name;
+        maxDoc = info.info.getDocCount();
+        folder = new File(cacheDir, segmentName);
+        Properties segment = new Properties();
+        segment.setProperty("maxDoc", Integer.toString(maxDoc));
+        String timestamp = info.info.getDiagnostics() == null ? null : info.info.getDiagnostics().get("timestamp");
+        segment.setProperty("timestamp", timestamp == null ? "unknown" : timestamp);
+        prepareFolder(segment);
+
+        directory = new MMapDirectory(folder);
+        segmentInfo = new SegmentInfo(directory, Constants.LUCENE_MAIN_VERSION, segmentName, maxDoc, false,
+                                      Codec.getDefault(), null);
+        File[] passes = folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(FIELDS_EXTENSION);
+            }
+        });
+        for (File pass: passes == null ? new File[0] : passes) {
+            loadPass(pass);
+        }
+        log.info("Opened " + this + " in " + (System.nanoTime()-startTime)/1000000 + "ms");
+    }
+
+    private void prepareFolder(Properties segment) throws IOException {
+        File segmentFile = new File(folder, SEGMENT_FILE);
+        if (segmentFile.exists()) {
+            Properties existing = new Properties();
+            try (InputStream in = new FileInputStream(segmentFile)) {
+                existing.load(in);
+            }
+            if (existing.equals(segment)) {
+                return;
+            }
+            log.info("Removing stored DocValues in " + folder + " as they were created for " + existing
+                     + " and the current segment is " + segment);
+            delete(folder);
+        }
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Unable to create folder " + folder);
+        }
+        store(segment, segmentFile);
+    }
+
+    private void loadPass(File passFile) throws IOException {
+        Properties pass = new Properties();
+        try (InputStream in = new FileInputStream(passFile)) {
+            pass.load(in);
+        }
+        final String suffix = passFile.getName().substring(0, passFile.getName().length()-FIELDS_EXTENSION.length());
+        for (String key: pass.stringPropertyNames()) {
+            if (!key.endsWith(".number")) {
+                continue;
+            }
+            String field = key.substring(0, key.length()-".number".length());
+            String config = pass.getProperty(field + ".config");
+            FieldInfo.DocValuesType type = FieldInfo.DocValuesType.valueOf(pass.getProperty(field + ".type"));
+            int deletedDocs = Integer.parseInt(pass.getProperty(DELETED_DOCS, "0"));
+            addEntry(new Entry(suffix, config, deletedDocs, createFieldInfo(
+                    field, Integer.parseInt(pass.getProperty(key)), type)));
+        }
+    }
+
+    private void addEntry(Entry entry) {
+        List<Entry> fieldEntries = entries.get(entry.fieldInfo.name);
+        if (fieldEntries == null) {
+            fieldEntries = new ArrayList<>(1);
+            entries.put(entry.fieldInfo.name, fieldEntries);
+        }
+        fieldEntries.add(entry);
+    }
+
+    /**
+     * @param dvConfig    the setup for a field.
+     * @param deletedDocs the number of deleted documents for the requesting reader.
+     * @return true if DocValues matching the setup and usable for the reader are stored.
+     */
+    public synchronized boolean contains(DVConfig dvConfig, int deletedDocs) {
+        return getEntry(dvConfig, deletedDocs) != null;
+    }
+
+    /**
+     * @param dvConfig    the setup for a field.
+     * @param deletedDocs the number of deleted documents for the requesting reader.
+     * @return memory mapped DocValues for the field or null if DocValues matching the setup and usable for the
+     *         reader are not stored.
+     * @throws IOException if the stored DocValues could not be opened.
+     */
+    public synchronized ExtractedField get(DVConfig dvConfig, int deletedDocs) throws IOException {
+        Entry entry = getEntry(dvConfig, deletedDocs);
+        if (entry == null) {
+            return null;
+        }
+        loaded++;
+        return new MappedField(dvConfig, entry.deletedDocs, getProducer(entry), entry.fieldInfo);
+    }
+
+    // The usable entry with the most deleted documents, as it holds the fewest values for deleted documents
+    private Entry getEntry(DVConfig dvConfig, int deletedDocs) {
+        Entry best = null;
+        List<Entry> fieldEntries = entries.get(dvConfig.getName());
+        if (fieldEntries != null) {
+            for (Entry entry: fieldEntries) {
+                if (entry.config.equals(getConfig(dvConfig)) && entry.deletedDocs <= deletedDocs
+                    && (best == null || entry.deletedDocs > best.deletedDocs)) {
+                    best = entry;
+                }
+            }
+        }
+        return best;
+    }
+
+    private DocValuesProducer getProducer(Entry entry) throws IOException {
+        DocValuesProducer producer = producers.get(entry.suffix);
+        if (producer == null) {
+            List<FieldInfo> fieldInfos = new ArrayList<>();
+            for (List<Entry> fieldEntries: entries.values()) {
+                for (Entry candidate: fieldEntries) {
+                    if (candidate.suffix.equals(entry.suffix)) {
+                        fieldInfos.add(candidate.fieldInfo);
+                    }
+                }
+            }
+            producer = format.fieldsProducer(new SegmentReadState(
+                    directory, segmentInfo, new FieldInfos(fieldInfos.toArray(new FieldInfo[fieldInfos.size()])),
+                    IOContext.READ, 1, entry.suffix));
+            producers.put(entry.suffix, producer);
+        }
+        return producer;
+    }
+
+    /**
+     * Stores the given DocValues and returns memory mapped versions of them. The given DocValues can be released
+     * after the call.
+     * @param extracted the result of an extraction pass, all with the same number of deleted documents.
+     * @return the same DocValues, memory mapped from storage.
+     * @throws IOException if the DocValues could not be stored.
+     */
+    public synchronized List<ExtractedField> write(List<ExtractedField> extracted) throws IOException {
+        final long startTime = System.nanoTime();
+        final String suffix = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX)
+                              + Integer.toString(passCounter.incrementAndGet(), Character.MAX_RADIX);
+        FieldInfo[] fieldInfos = new FieldInfo[extracted.size()];
+        Properties pass = new Properties();
+        final int deletedDocs = extracted.isEmpty() ? 0 : extracted.get(0).getDeletedDocs();
+        pass.setProperty(DELETED_DOCS, Integer.toString(deletedDocs));
+        for (int i = 0 ; i < fieldInfos.length ; i++) {
+            DVConfig dvConfig = extracted.get(i).getDVConfig();
+            fieldInfos[i] = createFieldInfo(dvConfig.getName(), i, dvConfig.getFieldInfo().getDocValuesType());
+            pass.setProperty(dvConfig.getName() + ".number", Integer.toString(i));
+            pass.setProperty(dvConfig.getName() + ".type", dvConfig.getFieldInfo().getDocValuesType().toString());
+            pass.setProperty(dvConfig.getName() + ".config", getConfig(dvConfig));
+        }
+
+        TrackingDirectoryWrapper tracker = new TrackingDirectoryWrapper(directory);
+        DocValuesConsumer consumer = format.fieldsConsumer(new SegmentWriteState(
+                InfoStream.NO_OUTPUT, tracker, segmentInfo, new FieldInfos(fieldInfos), 0, null, IOContext.DEFAULT,
+                suffix));
+        boolean success = false;
+        try {
+            for (int i = 0 ; i < fieldInfos.length ; i++) {
+                addField(consumer, fieldInfos[i], extracted.get(i));
+            }
+            success = true;
+        } finally {
+            if (success) {
+                consumer.close();
+            } else {
+                IOUtils.closeWhileHandlingException(consumer);
+            }
+        }
+        directory.sync(tracker.getCreatedFiles());
+        // The field description marks the pass as complete
+        store(pass, new File(folder, suffix + FIELDS_EXTENSION));
+
+        List<ExtractedField> mapped = new ArrayList<>(extracted.size());
+        for (int i = 0 ; i < fieldInfos.length ; i++) {
+            Entry entry = new Entry(suffix, getConfig(extracted.get(i).getDVConfig()), deletedDocs, fieldInfos[i]);
+            addEntry(entry);
+            mapped.add(new MappedField(
+                    extracted.get(i).getDVConfig(), deletedDocs, getProducer(entry), fieldInfos[i]));
+        }
+        written += fieldInfos.length;
+        log.info("Stored DocValues for " + fieldInfos.length + " fields in " + folder + " in "
+                 + (System.nanoTime()-startTime)/1000000 + "ms");
+        return mapped;
+    }
+
+    private void addField(DocValuesConsumer consumer, FieldInfo field, ExtractedField extracted)
+            throws IOException {
+        switch (field.getDocValuesType()) {
+            case NUMERIC:
+                consumer.addNumericField(field, DocValuesIterables.numericValues(
+                        extracted.getNumericDocValues(), extracted.getDocsWithField(), maxDoc));
+                break;
+            case BINARY:
+                consumer.addBinaryField(field, DocValuesIterables.binaryValues(
+                        extracted.getBinaryDocValues(), extracted.getDocsWithField(), maxDoc));
+                break;
+            case SORTED:
+                // Separate instances as the consumer might iterate the values and the ords at the same time
+                consumer.addSortedField(
+                        field, DocValuesIterables.sortedValues(extracted.getSortedDocValues()),
+                        DocValuesIterables.sortedOrds(extracted.getSortedDocValues(), maxDoc));
+                break;
+            case SORTED_SET:
+                consumer.addSortedSetField(
+                        field, DocValuesIterables.sortedSetValues(extracted.getSortedSetDocValues()),
+                        DocValuesIterables.sortedSetOrdCounts(extracted.getSortedSetDocValues(), maxDoc),
+                        DocValuesIterables.sortedSetOrds(extracted.getSortedSetDocValues(), maxDoc));
+                break;
+            default: throw new UnsupportedOperationException(
+                    "DocValues type " + field.getDocValuesType() + " for field '" + field.name
+                    + "' is not supported");
+        }
+    }
+
+    private static FieldInfo createFieldInfo(String field, int number, FieldInfo.DocValuesType type) {
+        return new FieldInfo(field, false, number, false, false, false, null, type, null, null);
+    }
+
+    // DocValues type, numeric type and source must match for the stored DocValues to be usable
+    private static String getConfig(DVConfig dvConfig) {
+        return dvConfig.toString(false);
+    }
+
+    private static void store(Properties properties, File destination) throws IOException {
+        File tmp = new File(destination.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, "Stored DocValues");
+        }
+        if (!tmp.renameTo(destination)) {
+            throw new IOException("Unable to rename " + tmp + " to " + destination);
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+    }
+
+    /**
+     * @return the number of requests for fields that were served from storage.
+     */
+    public synchronized int getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return the number of fields that has been written to storage.
+     */
+    public synchronized int getWritten() {
+        return written;
+    }
+
+    /**
+     * Closes the memory mapped DocValues. DocValues handed out earlier must not be used after this.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            IOUtils.close(producers.values());
+        } finally {
+            producers.clear();
+            directory.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PersistentDocValues(folder=" + folder + ", fields=" + entries.keySet() + ", loaded=" + loaded
+               + ", written=" + written + ")";
+    }
+
+    private static class Entry {
+        private final String suffix;
+        private final String config;
+        private final int deletedDocs;
+        private final FieldInfo fieldInfo;
+
+        public Entry(String suffix, String config, int deletedDocs, FieldInfo fieldInfo) {
+            this.suffix = suffix;
+            this.config = config;
+            this.deletedDocs = deletedDocs;
+            this.fieldInfo = fieldInfo;
+        }
+    }
+
+    /**
+     * DocValues served from a memory mapped DocValuesProducer, which creates new instances for each request.
+     */
+    private static class MappedField extends ExtractedField {
+        private final DocValuesProducer producer;
+        private final FieldInfo fieldInfo;
+
+        public MappedField(DVConfig dvConfig, int deletedDocs, DocValuesProducer producer, FieldInfo fieldInfo) {
+            super(dvConfig, deletedDocs);
+            this.producer = producer;
+            this.fieldInfo = fieldInfo;
+        }
+
+        @Override
+        public Bits getDocsWithField() throws IOException {
+            return producer.getDocsWithField(fieldInfo);
+        }
+
+        @Override
+        public NumericDocValues getNumericDocValues() throws IOException {
+            FieldInfo info = check(FieldInfo.DocValuesType.NUMERIC, fieldInfo);
+            return info == null ? null : producer.getNumeric(info);
+        }
+
+        @Override
+        public BinaryDocValues getBinaryDocValues() throws IOException {
+            FieldInfo info = check(FieldInfo.DocValuesType.BINARY, fieldInfo);
+            return info == null ? null : producer.getBinary(info);
+        }
+
+        @Override
+        public SortedDocValues getSortedDocValues() throws IOException {
+            FieldInfo info = check(FieldInfo.DocValuesType.SORTED, fieldInfo);
+            return info == null ? null : producer.getSorted(info);
+        }
+
+        @Override
+        public SortedSetDocValues getSortedSetDocValues() throws IOException {
+            FieldInfo info = check(FieldInfo.DocValuesType.SORTED_SET, fieldInfo);
+            return info == null ? null : producer.getSortedSet(info);
+        }
+
+        /**
+         * @return 0 as the DocValues are held off-heap.
+         */
+        @Override
+        public long ramBytesUsed() {
+            return 0;
+        }
+    }
+}
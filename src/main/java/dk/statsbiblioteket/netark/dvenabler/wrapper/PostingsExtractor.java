@@ -0,0 +1,355 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.packed.AppendingDeltaPackedLongBuffer;
+import org.apache.lucene.util.packed.AppendingPackedLongBuffer;
+import org.apache.lucene.util.packed.GrowableWriter;
+import org.apache.lucene.util.packed.MonotonicAppendingLongBuffer;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PagedGrowableWriter;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Constructs DocValues by uninverting the terms and postings for the fields.
+ * </p><p>
+ * The terms dictionary holds the unique values in sorted order, so the ordinal for a term is simply its position
+ * in the dictionary: No sorting is needed and no stored fields are decompressed. This also works for fields that
+ * are indexed but not stored. The fields must be untokenized, as each term becomes a value.
+ * </p><p>
+ * Numeric fields are uninverted from the full precision (shift 0) trie terms. The lower precision terms are
+ * skipped without decoding.
+ * </p><p>
+ * Deleted documents are skipped, and terms that only occur in deleted documents are not part of the dictionary.
+ */
+public class PostingsExtractor extends DocValuesExtractor {
+    private static Log log = LogFactory.getLog(PostingsExtractor.class);
+
+    private static final int PAGE_SIZE = 1 << 20;
+
+    private final AtomicReader reader;
+    private final Bits liveDocs; // null if there are no deletions
+    private final Collection<DVConfig> dvConfigs;
+    private final Map<String, Bits> docsWithField = new HashMap<>();
+    private final Map<String, NumericDocValuesWrapper> numeric = new HashMap<>();
+    private final Map<String, SortedDocValuesWrapper> sorted = new HashMap<>();
+    private final Map<String, SortedSetDocValuesWrapper> sortedSet = new HashMap<>();
+
+    /**
+     * @param reader    the reader to uninvert postings from.
+     * @param dvConfigs the fields to uninvert. All fields must have NUMERIC, SORTED or SORTED_SET DocValues enabled.
+     */
+    public PostingsExtractor(AtomicReader reader, Collection<DVConfig> dvConfigs) {
+        this.reader = reader;
+        liveDocs = reader.getLiveDocs();
+        this.dvConfigs = dvConfigs;
+        for (DVConfig dvConfig: dvConfigs) {
+            if (!dvConfig.hasDocValues()) {
+                throw new IllegalArgumentException("The field '" + dvConfig.getName() + "' does not have DocValues");
+            }
+            switch (dvConfig.getFieldInfo().getDocValuesType()) {
+                case NUMERIC:
+                case SORTED:
+                case SORTED_SET: break;
+                default: throw new IllegalArgumentException(
+                        "DocValues of type " + dvConfig.getFieldInfo().getDocValuesType() + " for field '"
+                        + dvConfig.getName() + "' cannot be constructed from postings");
+            }
+            FieldInfo original = reader.getFieldInfos().fieldInfo(dvConfig.getName());
+            if (original != null && !original.isIndexed()) {
+                throw new IllegalArgumentException(
+                        "The field '" + dvConfig.getName() + "' is not indexed and has no postings");
+            }
+        }
+    }
+
+    @Override
+    public void extract() throws IOException {
+        for (DVConfig dvConfig: dvConfigs) {
+            final long startTime = System.nanoTime();
+            switch (dvConfig.getFieldInfo().getDocValuesType()) {
+                case NUMERIC: {
+                    NumericDocValuesWrapper docValues = extractNumeric(dvConfig);
+                    log.info("Uninverted NumericDocValues for " + reader.maxDoc() + " docs for field '"
+                             + dvConfig.getName() + "' (" + docValues.ramBytesUsed()/1024 + "KB) in "
+                             + (System.nanoTime()-startTime)/1000000 + "ms");
+                    numeric.put(dvConfig.getName(), docValues);
+                    break;
+                }
+                case SORTED: {
+                    SortedDocValuesWrapper docValues = extractSorted(dvConfig.getName());
+                    log.info("Uninverted SortedDocValues with " + docValues.getValueCount() + " unique values for "
+                             + reader.maxDoc() + " docs for field '" + dvConfig.getName() + "' in "
+                             + (System.nanoTime()-startTime)/1000000 + "ms");
+                    sorted.put(dvConfig.getName(), docValues);
+                    break;
+                }
+                case SORTED_SET: {
+                    SortedSetDocValuesWrapper docValues = extractSortedSet(dvConfig.getName());
+                    log.info("Uninverted SortedSetDocValues with " + docValues.getValueCount() + " unique values for "
+                             + reader.maxDoc() + " docs for field '" + dvConfig.getName() + "' in "
+                             + (System.nanoTime()-startTime)/1000000 + "ms");
+                    sortedSet.put(dvConfig.getName(), docValues);
+                    break;
+                }
+                default: throw new IllegalStateException(
+                        "Unsupported DocValues type " + dvConfig.getFieldInfo().getDocValuesType());
+            }
+        }
+    }
+
+    // The unique values are collected in term order along with the term ordinal for each document. When all terms
+    // has been visited, the values are packed in docID order. If a document has more than one term, the lowest
+    // one is used
+    private NumericDocValuesWrapper extractNumeric(DVConfig dvConfig) throws IOException {
+        final String field = dvConfig.getName();
+        final int maxDoc = reader.maxDoc();
+        final OpenBitSet docs = new OpenBitSet(maxDoc);
+        final GrowableWriter docToOrd = new GrowableWriter(1, maxDoc, PackedInts.DEFAULT); // ord+1, 0 is no value
+        final AppendingDeltaPackedLongBuffer values = new AppendingDeltaPackedLongBuffer(PackedInts.COMPACT);
+        long minValue = Long.MAX_VALUE;
+        long maxValue = Long.MIN_VALUE;
+        long withValue = 0;
+        long multiValued = 0;
+        long deadTerms = 0;
+        Terms terms = reader.terms(field);
+        if (terms != null) {
+            final TermsEnum termsEnum;
+            switch (dvConfig.getNumericType()) {
+                case INT:
+                case FLOAT: termsEnum = NumericUtils.filterPrefixCodedInts(terms.iterator(null)); break;
+                case LONG:
+                case DOUBLE: termsEnum = NumericUtils.filterPrefixCodedLongs(terms.iterator(null)); break;
+                default: throw new IllegalStateException(
+                        "Unknown NumericType " + dvConfig.getNumericType() + " for field " + field);
+            }
+            DocsEnum docsEnum = null;
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+                int docID = docsEnum.nextDoc();
+                if (docID == DocIdSetIterator.NO_MORE_DOCS) {
+                    deadTerms++;
+                    continue;
+                }
+                final long value = NumericDocValuesWrapper.termToDocValue(term, dvConfig);
+                values.add(value);
+                minValue = Math.min(minValue, value);
+                maxValue = Math.max(maxValue, value);
+                final long ord = values.size();
+                for ( ; docID != DocIdSetIterator.NO_MORE_DOCS ; docID = docsEnum.nextDoc()) {
+                    if (docs.fastGet(docID)) {
+                        multiValued++;
+                        continue;
+                    }
+                    docs.fastSet(docID);
+                    docToOrd.set(docID, ord);
+                    withValue++;
+                }
+            }
+        }
+        values.freeze();
+        logDeadTerms(field, deadTerms);
+        if (multiValued > 0) {
+            log.warn("The field '" + field + "' had " + multiValued + " extra values in documents that already had "
+                     + "a value. Only the lowest value for each document is used for NumericDocValues");
+        }
+        if (withValue < maxDoc) { // Documents without value are 0
+            minValue = Math.min(minValue, 0);
+            maxValue = Math.max(maxValue, 0);
+        }
+        if (maxDoc == 0) {
+            minValue = maxValue = 0;
+        }
+
+        PackedInts.Mutable packed = PackedInts.getMutable(
+                maxDoc, NumericDocValuesWrapper.bitsRequired(minValue, maxValue), PackedInts.DEFAULT);
+        for (int docID = 0 ; docID < maxDoc ; docID++) {
+            final long ord = docToOrd.get(docID);
+            packed.set(docID, (ord == 0 ? 0 : values.get(ord-1)) - minValue);
+        }
+        docsWithField.put(field, docs);
+        return new NumericDocValuesWrapper(minValue, packed);
+    }
+
+    // If a document has more than one term, the lowest one is used
+    private SortedDocValuesWrapper extractSorted(String field) throws IOException {
+        final OpenBitSet docs = new OpenBitSet(reader.maxDoc());
+        final GrowableWriter docToOrd = new GrowableWriter(1, reader.maxDoc(), PackedInts.DEFAULT);
+        final ValueDictionary values = new ValueDictionary();
+        long multiValued = 0;
+        long deadTerms = 0;
+        Terms terms = reader.terms(field);
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docsEnum = null;
+            BytesRef term;
+            long ord = 0;
+            while ((term = termsEnum.next()) != null) {
+                docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+                int docID = docsEnum.nextDoc();
+                if (docID == DocIdSetIterator.NO_MORE_DOCS) {
+                    deadTerms++;
+                    continue;
+                }
+                values.add(term);
+                for ( ; docID != DocIdSetIterator.NO_MORE_DOCS ; docID = docsEnum.nextDoc()) {
+                    if (docs.fastGet(docID)) {
+                        multiValued++;
+                        continue;
+                    }
+                    docs.fastSet(docID);
+                    docToOrd.set(docID, ord+1);
+                }
+                ord++;
+            }
+        }
+        logDeadTerms(field, deadTerms);
+        if (multiValued > 0) {
+            log.warn("The field '" + field + "' had " + multiValued + " extra terms in documents that already had "
+                     + "a term. Only the lowest term for each document is used for SortedDocValues");
+        }
+        if (values.size() > Integer.MAX_VALUE) {
+            throw new IllegalStateException(
+                    "The field '" + field + "' has " + values.size() + " unique values. "
+                    + "SortedDocValues supports at most " + Integer.MAX_VALUE + ". Use SORTED_SET instead");
+        }
+        docsWithField.put(field, docs);
+        return new SortedDocValuesWrapper(values.freeze(), docToOrd.getMutable());
+    }
+
+    // Two passes over the postings: The first counts the terms for each document, the second places the ordinals.
+    // As the terms are visited in order, the ordinals for each document are unique and sorted by construction
+    private SortedSetDocValuesWrapper extractSortedSet(String field) throws IOException {
+        final int maxDoc = reader.maxDoc();
+        final OpenBitSet docs = new OpenBitSet(maxDoc);
+        final ValueDictionary values = new ValueDictionary();
+        GrowableWriter counts = new GrowableWriter(1, maxDoc, PackedInts.COMPACT);
+        long references = 0;
+        long deadTerms = 0;
+        Terms terms = reader.terms(field);
+        TermsEnum termsEnum = null;
+        DocsEnum docsEnum = null;
+        if (terms != null) {
+            termsEnum = terms.iterator(null);
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+                int docID = docsEnum.nextDoc();
+                if (docID == DocIdSetIterator.NO_MORE_DOCS) {
+                    deadTerms++;
+                    continue;
+                }
+                values.add(term);
+                for ( ; docID != DocIdSetIterator.NO_MORE_DOCS ; docID = docsEnum.nextDoc()) {
+                    docs.fastSet(docID);
+                    counts.set(docID, counts.get(docID)+1);
+                    references++;
+                }
+            }
+        }
+
+        logDeadTerms(field, deadTerms);
+        final MonotonicAppendingLongBuffer offsets = new MonotonicAppendingLongBuffer(PackedInts.COMPACT);
+        long offset = 0;
+        for (int docID = 0 ; docID < maxDoc ; docID++) {
+            offsets.add(offset);
+            offset += counts.get(docID);
+        }
+        offsets.add(offset);
+        offsets.freeze();
+        counts = null;
+
+        final PagedGrowableWriter slots = new PagedGrowableWriter(
+                Math.max(1, references), PAGE_SIZE, 1, PackedInts.COMPACT);
+        final GrowableWriter filled = new GrowableWriter(1, maxDoc, PackedInts.COMPACT);
+        if (terms != null) {
+            termsEnum = terms.iterator(termsEnum);
+            long ord = 0;
+            while (termsEnum.next() != null) {
+                docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+                int docID = docsEnum.nextDoc();
+                if (docID == DocIdSetIterator.NO_MORE_DOCS) {
+                    continue; // Not in the dictionary
+                }
+                for ( ; docID != DocIdSetIterator.NO_MORE_DOCS ; docID = docsEnum.nextDoc()) {
+                    final long count = filled.get(docID);
+                    slots.set(offsets.get(docID) + count, ord);
+                    filled.set(docID, count+1);
+                }
+                ord++;
+            }
+        }
+
+        final AppendingPackedLongBuffer ords = new AppendingPackedLongBuffer(PackedInts.COMPACT);
+        for (long i = 0 ; i < references ; i++) {
+            ords.add(slots.get(i));
+        }
+        ords.freeze();
+        docsWithField.put(field, docs);
+        return new SortedSetDocValuesWrapper(values.freeze(), offsets, ords);
+    }
+
+    private void logDeadTerms(String field, long deadTerms) {
+        if (deadTerms > 0) {
+            log.debug("Skipped " + deadTerms + " terms for field '" + field + "' that only occur in deleted documents");
+        }
+    }
+
+    @Override
+    public Bits getDocsWithField(String field) {
+        return get(docsWithField, field);
+    }
+
+    @Override
+    public NumericDocValuesWrapper getNumericDocValues(String field) {
+        return get(numeric, field);
+    }
+
+    @Override
+    public BinaryDocValuesWrapper getBinaryDocValues(String field) {
+        throw new IllegalArgumentException(
+                "The field '" + field + "' was not extracted. BINARY DocValues cannot be constructed from postings");
+    }
+
+    @Override
+    public SortedDocValuesWrapper getSortedDocValues(String field) {
+        return new SortedDocValuesWrapper(get(sorted, field));
+    }
+
+    @Override
+    public SortedSetDocValuesWrapper getSortedSetDocValues(String field) {
+        return new SortedSetDocValuesWrapper(get(sortedSet, field));
+    }
+
+    private <T> T get(Map<String, T> map, String field) {
+        T value = map.get(field);
+        if (value == null) {
+            throw new IllegalArgumentException("The field '" + field + "' was not extracted");
+        }
+        return value;
+    }
+}
@@ -17,78 +17,111 @@ package dk.statsbiblioteket.netark.dvenabler.wrapper;
 import dk.statsbiblioteket.netark.dvenabler.DVConfig;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
-import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.packed.GrowableWriter;
+import org.apache.lucene.util.packed.PackedInts;
 
 import java.io.IOException;
-import java.util.*;
 
 /**
- * Memory-intensive transformer: All values are stored as String in (gasp) a Set and a List.
+ * The unique values are held in a {@link ValueDictionary}.
+ * The ordinal for each document is stored as {@code ord+1} in a packed structure, with 0 meaning no value.
+ * Instances are not thread safe. Use {@link #SortedDocValuesWrapper(SortedDocValuesWrapper)} to get
+ * another instance sharing the same values.
  */
 public class SortedDocValuesWrapper extends SortedDocValues {
     private static Log log = LogFactory.getLog(SortedDocValuesWrapper.class);
 
-    private final AtomicReader reader;
-    private final DVConfig field;
-    private final Set<String> FIELDS; // Contains {@link #field} and nothing else
-    // TODO: Store this in a BytesRefArray instead. This requires custom binary search
-    private final List<BytesRef> values;
-    private final ProgressTracker tracker;
-
-    public SortedDocValuesWrapper(AtomicReader reader, DVConfig field) throws IOException {
-        this.reader = reader;
-        this.field = field;
-        FIELDS = new HashSet<>(Arrays.asList(field.getName()));
-        log.info("Creating map for SortedDocValues for field '" + field + "'");
-        long startTime = System.nanoTime();
-        values = fill();
-        tracker = new ProgressTracker(field.getName(), log, reader.maxDoc());
-        log.info("Finished creating SortedDocValues with " + values.size() + " unique values for " + reader.maxDoc()
-                 + " docs for field '" + field + "' in " + ((System.nanoTime()-startTime)/1000000/1000) + "ms");
+    private final ValueDictionary values;
+    private final PackedInts.Reader docToOrd; // ord+1, 0 means no value
+    private final ValueDictionary.Cursor cursor;
+
+    public SortedDocValuesWrapper(ValueDictionary values, PackedInts.Reader docToOrd) {
+        this.values = values;
+        this.docToOrd = docToOrd;
+        cursor = values.cursor();
     }
 
-    private List<BytesRef> fill() throws IOException {
-        final SortedSet<BytesRef> values = new TreeSet<>();
-        for (int docID = 0 ; docID < reader.maxDoc() ; docID++) {
-            String value = reader.document(docID, FIELDS).get(field.getName());
-            //System.out.println(value);
-            if (value != null) {
-                values.add(new BytesRef(value));
-            }
-        }
-        return new ArrayList<>(values);
+    public SortedDocValuesWrapper(SortedDocValuesWrapper other) {
+        this(other.values, other.docToOrd);
     }
 
     @Override
     public int getOrd(int docID) {
-        tracker.ping(docID);
-
-        try {
-            String value = reader.document(docID, FIELDS).get(field.getName());
-            if (value == null) {
-                return -1;
-            }
-            int ord = Collections.binarySearch(values, new BytesRef(value));
-            if (ord < 0) {
-                throw new IllegalStateException(
-                        "The ord for value '" + value + "' for docID " + docID + " in field '" + field
-                        + "' could not be located but should always be present");
-            }
-            return ord;
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to lookup docID=" + docID + ", field=" + field, e);
-        }
+        return (int) docToOrd.get(docID) - 1;
     }
 
     @Override
     public void lookupOrd(int ord, BytesRef result) {
-        result.copyBytes(values.get(ord));
+        result.copyBytes(cursor.lookup(ord));
+    }
+
+    @Override
+    public int lookupTerm(BytesRef key) {
+        return (int) cursor.find(key);
     }
 
     @Override
     public int getValueCount() {
-        return values.size();
+        return (int) values.size();
+    }
+
+    public long ramBytesUsed() {
+        return values.ramBytesUsed() + docToOrd.ramBytesUsed();
+    }
+
+    /**
+     * Collects the first stored value for each document and resolves ordinals when finished.
+     */
+    public static class Collector extends FieldCollector {
+        private final ValueSorter sorter;
+        private int lastDocID = -1;
+        private SortedDocValuesWrapper docValues = null;
+
+        public Collector(DVConfig dvConfig, int maxDoc, ValueSorter sorter) {
+            super(dvConfig, maxDoc);
+            this.sorter = sorter;
+        }
+
+        @Override
+        public boolean isFirstValueOnly() {
+            return true;
+        }
+
+        @Override
+        protected void add(int docID, BytesRef value) throws IOException {
+            if (docID == lastDocID) {
+                return; // Only the first value is used
+            }
+            lastDocID = docID;
+            sorter.add(docID, value);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            final long startTime = System.nanoTime();
+            final GrowableWriter docToOrd = new GrowableWriter(1, maxDoc, PackedInts.DEFAULT);
+            ValueDictionary values = sorter.resolve(new ValueSorter.OrdinalConsumer() {
+                @Override
+                public void ord(int docID, long ord) {
+                    docToOrd.set(docID, ord+1);
+                }
+            });
+            if (values.size() > Integer.MAX_VALUE) {
+                throw new IllegalStateException(
+                        "The field '" + dvConfig.getName() + "' has " + values.size() + " unique values. "
+                        + "SortedDocValues supports at most " + Integer.MAX_VALUE + ". Use SORTED_SET instead");
+            }
+            docValues = new SortedDocValuesWrapper(values, docToOrd.getMutable());
+            log.info("Finished creating SortedDocValues with " + values.size() + " unique values for " + maxDoc
+                     + " docs for field '" + dvConfig.getName() + "' with " + docToOrd.getBitsPerValue()
+                     + " bits/ordinal and " + values.ramBytesUsed()/1024 + "KB for the values in "
+                     + (System.nanoTime()-startTime)/1000000 + "ms");
+        }
+
+        public SortedDocValuesWrapper getDocValues() {
+            return new SortedDocValuesWrapper(docValues);
+        }
     }
 }
@@ -17,105 +17,162 @@ package dk.statsbiblioteket.netark.dvenabler.wrapper;
 import dk.statsbiblioteket.netark.dvenabler.DVConfig;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.packed.AppendingPackedLongBuffer;
+import org.apache.lucene.util.packed.GrowableWriter;
+import org.apache.lucene.util.packed.MonotonicAppendingLongBuffer;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PagedGrowableWriter;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.Arrays;
 
 /**
- * Memory-intensive transformer: All values are stored as String in (gasp) a Set and a List.
+ * The unique values are held in a {@link ValueDictionary}.
+ * The ordinals for all documents are stored sequentially in a packed structure, with the start of the ordinals
+ * for each document stored in a monotonic packed structure. The ordinals for document {@code docID} are
+ * {@code ords[offsets[docID]..offsets[docID+1]-1]}.
+ * All structures are long-addressed, so the number of unique values is not limited to 2^31.
+ * Instances are not thread safe. Use {@link #SortedSetDocValuesWrapper(SortedSetDocValuesWrapper)} to get
+ * another instance sharing the same values.
  */
-// TODO: Remove the 2^31 limit on unique values
 public class SortedSetDocValuesWrapper extends SortedSetDocValues {
     private static Log log = LogFactory.getLog(SortedSetDocValuesWrapper.class);
 
-    private final AtomicReader reader;
-    private final DVConfig field;
-    private final Set<String> FIELDS; // Contains {@link #field} and nothing else
-    // TODO: Store this in a BytesRefArray instead. This requires custom binary search
-    private final List<BytesRef> values;
-
-    private int docID = -1;
-    private int ordinalIndex = -1;
-    private long[] ordinals = new long[10];
-    private int ordinalsCount = -1;
-    private final ProgressTracker tracker;
-
-    public SortedSetDocValuesWrapper(AtomicReader reader, DVConfig field) throws IOException {
-        this.reader = reader;
-        this.field = field;
-        FIELDS = new HashSet<>(Arrays.asList(field.getName()));
-        log.info("Creating map for SortedSetDocValues for field '" + field + "'");
-        long startTime = System.nanoTime();
-        values = fill();
-        tracker = new ProgressTracker(field.getName(), log, reader.maxDoc());
-        log.info("Finished creating SortedSetDocValues with " + values.size() + " unique values for " + reader.maxDoc()
-                 + " docs for field '" + field + "' in " + ((System.nanoTime()-startTime)/1000000/1000) + "ms");
+    private final ValueDictionary values;
+    private final MonotonicAppendingLongBuffer offsets;
+    private final AppendingPackedLongBuffer ords;
+    private final ValueDictionary.Cursor cursor;
+
+    private long ordinalIndex = 0;
+    private long ordinalsEnd = 0;
+
+    public SortedSetDocValuesWrapper(
+            ValueDictionary values, MonotonicAppendingLongBuffer offsets, AppendingPackedLongBuffer ords) {
+        this.values = values;
+        this.offsets = offsets;
+        this.ords = ords;
+        cursor = values.cursor();
     }
 
-    private List<BytesRef> fill() throws IOException {
-        // TODO: Is this sort the same as the default BytesRef-based sort for DocValues?
-        final SortedSet<BytesRef> values = new TreeSet<>();
-        for (int docID = 0 ; docID < reader.maxDoc() ; docID++) {
-            String[] stored = reader.document(docID, FIELDS).getValues(field.getName());
-            if (stored == null) {
-                continue;
-            }
-            for (String value: stored) {
-                values.add(new BytesRef(value));
-            }
-        }
-        return new ArrayList<>(values);
+    public SortedSetDocValuesWrapper(SortedSetDocValuesWrapper other) {
+        this(other.values, other.offsets, other.ords);
     }
 
     @Override
     public long nextOrd() {
-        return ordinalIndex == ordinalsCount ? NO_MORE_ORDS : ordinals[ordinalIndex++];
+        return ordinalIndex == ordinalsEnd ? NO_MORE_ORDS : ords.get(ordinalIndex++);
     }
 
     @Override
     public void setDocument(int docID) {
-        tracker.ping(docID);
-
-        this.docID = docID;
-        ordinalIndex = 0;
-        ordinalsCount = 0;
-        try {
-            Document doc = reader.document(docID, FIELDS);
-            String[] vals = doc.getValues(field.getName());
-            if (vals == null) {
-                return;
-            }
-            if (vals.length > ordinals.length) {
-                ordinals = new long[vals.length];
-            }
-            for (String val: vals) {
-                ordinals[ordinalsCount++] = getOrd(val);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Unexpected IOException accessing field " + field, e);
-        }
+        ordinalIndex = offsets.get(docID);
+        ordinalsEnd = offsets.get(docID+1);
     }
 
     @Override
     public void lookupOrd(long ord, BytesRef result) {
-        result.copyBytes(values.get((int) ord));
+        result.copyBytes(cursor.lookup(ord));
     }
 
-    public long getOrd(String value) {
-        int ord = Collections.binarySearch(values, new BytesRef(value));
-        if (ord < 0) {
-            throw new IllegalStateException(
-                    "The ord for value '" + value + "' for docID " + docID + " in field '" + field
-                    + "' could not be located but should always be present");
-        }
-        return ord;
+    @Override
+    public long lookupTerm(BytesRef key) {
+        return cursor.find(key);
     }
 
     @Override
     public long getValueCount() {
         return values.size();
     }
+
+    public long ramBytesUsed() {
+        return values.ramBytesUsed() + offsets.ramBytesUsed() + ords.ramBytesUsed();
+    }
+
+    /**
+     * Collects all stored values for each document and resolves ordinals when finished.
+     */
+    public static class Collector extends FieldCollector {
+        private static final int PAGE_SIZE = 1 << 20;
+
+        private final ValueSorter sorter;
+        // The start of the stored values for each document
+        private final MonotonicAppendingLongBuffer valueOffsets = new MonotonicAppendingLongBuffer(PackedInts.COMPACT);
+        private long valueCount = 0;
+        private SortedSetDocValuesWrapper docValues = null;
+
+        public Collector(DVConfig dvConfig, int maxDoc, ValueSorter sorter) {
+            super(dvConfig, maxDoc);
+            this.sorter = sorter;
+        }
+
+        @Override
+        protected void add(int docID, BytesRef value) throws IOException {
+            fillOffsets(docID);
+            sorter.add(docID, value);
+            valueCount++;
+        }
+
+        // valueOffsets[docID] is the start of the values for the document, so previous documents up to and
+        // including docID must be assigned before values for docID is added
+        private void fillOffsets(int docID) {
+            while (valueOffsets.size() <= docID) {
+                valueOffsets.add(valueCount);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            final long startTime = System.nanoTime();
+            fillOffsets(maxDoc);
+            valueOffsets.freeze();
+
+            // The ordinals are delivered in undefined order, so they are placed in per-document slots first
+            final PagedGrowableWriter slots = new PagedGrowableWriter(
+                    Math.max(1, valueCount), PAGE_SIZE, 1, PackedInts.COMPACT);
+            final GrowableWriter filled = new GrowableWriter(1, maxDoc, PackedInts.COMPACT);
+            ValueDictionary values = sorter.resolve(new ValueSorter.OrdinalConsumer() {
+                @Override
+                public void ord(int docID, long ord) {
+                    final long count = filled.get(docID);
+                    slots.set(valueOffsets.get(docID) + count, ord);
+                    filled.set(docID, count+1);
+                }
+            });
+
+            // SortedSetDocValues must deliver unique ordinals in increasing order for each document
+            final MonotonicAppendingLongBuffer offsets = new MonotonicAppendingLongBuffer(PackedInts.COMPACT);
+            final AppendingPackedLongBuffer ords = new AppendingPackedLongBuffer(PackedInts.COMPACT);
+            long[] docOrds = new long[10];
+            for (int docID = 0 ; docID < maxDoc ; docID++) {
+                final long start = valueOffsets.get(docID);
+                final int count = (int) filled.get(docID);
+                docOrds = ArrayUtil.grow(docOrds, count);
+                for (int i = 0 ; i < count ; i++) {
+                    docOrds[i] = slots.get(start+i);
+                }
+                Arrays.sort(docOrds, 0, count);
+                offsets.add(ords.size());
+                for (int i = 0 ; i < count ; i++) {
+                    if (i == 0 || docOrds[i] != docOrds[i-1]) {
+                        ords.add(docOrds[i]);
+                    }
+                }
+            }
+            offsets.add(ords.size());
+            offsets.freeze();
+            ords.freeze();
+            docValues = new SortedSetDocValuesWrapper(values, offsets, ords);
+            log.info("Finished creating SortedSetDocValues with " + values.size() + " unique values and "
+                     + ords.size() + " references for " + maxDoc + " docs for field '" + dvConfig.getName()
+                     + "' with " + values.ramBytesUsed()/1024 + "KB for the values in "
+                     + (System.nanoTime()-startTime)/1000000 + "ms");
+        }
+
+        public SortedSetDocValuesWrapper getDocValues() {
+            return new SortedSetDocValuesWrapper(docValues);
+        }
+    }
 }
@@ -0,0 +1,571 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import dk.statsbiblioteket.netark.dvenabler.DVSettings;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.compressing.StoredFieldsChunkCache;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.UnicodeUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Visits all documents in a segment once, collecting the stored values for all the given fields in the same pass.
+ * Stored fields are compressed in chunks, so reading them is the expensive part of the conversion. Doing it
+ * once per segment instead of once per field (and once more per lookup) is the main speed-up.
+ * </p><p>
+ * Deleted documents are not visited, so their values are neither decoded nor part of the DocValues.
+ */
+public class StoredFieldExtractor extends DocValuesExtractor {
+    private static Log log = LogFactory.getLog(StoredFieldExtractor.class);
+
+    private static final int BLOCK_SIZE = 1024; // Documents per decoding block when pipelining
+
+    private final AtomicReader reader;
+    private final Bits liveDocs; // null if there are no deletions
+    private final DVSettings settings;
+    private final long sortBudget; // Bytes of heap for sorting values, per field
+    private final Map<String, FieldCollector> collectors;
+    private final FieldCollector[] slots; // The collectors, addressed by slot
+    private final Set<String> FIELDS; // The names of all fields to extract
+
+    /**
+     * @param reader    the reader to extract stored values from.
+     * @param dvConfigs the fields to extract values for. All fields must have DocValues enabled.
+     * @param settings  resource limits for the extraction.
+     */
+    public StoredFieldExtractor(AtomicReader reader, Collection<DVConfig> dvConfigs, DVSettings settings) {
+        this.reader = reader;
+        liveDocs = reader.getLiveDocs();
+        this.settings = settings;
+        int sortedFields = 0;
+        for (DVConfig dvConfig: dvConfigs) {
+            FieldInfo.DocValuesType type = dvConfig.getFieldInfo().getDocValuesType();
+            if (type == FieldInfo.DocValuesType.SORTED || type == FieldInfo.DocValuesType.SORTED_SET) {
+                sortedFields++;
+            }
+        }
+        sortBudget = settings.getSortBufferMB() * 1048576L / Math.max(1, sortedFields);
+        collectors = new LinkedHashMap<>(dvConfigs.size());
+        for (DVConfig dvConfig: dvConfigs) {
+            collectors.put(dvConfig.getName(), createCollector(dvConfig, reader.maxDoc()));
+        }
+        slots = collectors.values().toArray(new FieldCollector[collectors.size()]);
+        FIELDS = new HashSet<>(collectors.keySet());
+    }
+
+    private FieldCollector createCollector(DVConfig dvConfig, int maxDoc) {
+        if (!dvConfig.hasDocValues()) {
+            throw new IllegalArgumentException("The field '" + dvConfig.getName() + "' does not have DocValues");
+        }
+        switch (dvConfig.getFieldInfo().getDocValuesType()) {
+            case NUMERIC: return new NumericDocValuesWrapper.Collector(dvConfig, maxDoc);
+            case BINARY: return new BinaryDocValuesWrapper.Collector(dvConfig, maxDoc);
+            case SORTED: return new SortedDocValuesWrapper.Collector(
+                    dvConfig, maxDoc, new ValueSorter(dvConfig.getName(), sortBudget, settings.getTempDir()));
+            case SORTED_SET: return new SortedSetDocValuesWrapper.Collector(
+                    dvConfig, maxDoc, new ValueSorter(dvConfig.getName(), sortBudget, settings.getTempDir()));
+            default: return new FieldCollector(dvConfig, maxDoc) { // Only docsWithField is resolved
+                @Override
+                public boolean isFirstValueOnly() {
+                    return true;
+                }
+
+                @Override
+                protected void add(int docID, BytesRef value) { }
+            };
+        }
+    }
+
+    @Override
+    public void extract() throws IOException {
+        log.info("Extracting stored values for fields " + FIELDS + " from " + reader.maxDoc() + " docs, skipping "
+                 + reader.numDeletedDocs() + " deleted docs");
+        final long startTime = System.nanoTime();
+        final ExecutorService executor = settings.getDecoders() == 0 ? null :
+                Executors.newFixedThreadPool(settings.getDecoders());
+        try {
+            if (executor == null || reader.maxDoc() <= BLOCK_SIZE) { // Small segments are not worth pipelining
+                scan();
+            } else {
+                scanPipelined(executor);
+            }
+            final long afterScan = System.nanoTime();
+            finishCollectors(executor);
+            log.info("Extracted stored values for fields " + FIELDS + " from " + reader.maxDoc() + " docs in "
+                     + (afterScan-startTime)/1000000 + "ms (scan) + "
+                     + (System.nanoTime()-afterScan)/1000000 + "ms (post-processing)");
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    // Decodes and collects on the calling thread
+    private void scan() throws IOException {
+        final ProgressTracker tracker = new ProgressTracker(FIELDS.toString(), log, reader.maxDoc());
+        final CollectingVisitor visitor = new CollectingVisitor();
+        // Documents are visited in order, so the cache only ever needs to hold a single chunk
+        try (StoredFieldsChunkCache cache = createChunkCache()) {
+            for (int docID = 0 ; docID < reader.maxDoc() ; docID++) {
+                tracker.ping(docID);
+                if (liveDocs != null && !liveDocs.get(docID)) {
+                    continue;
+                }
+                visitor.setDocID(docID);
+                visitDocument(cache, docID, visitor);
+            }
+        }
+    }
+
+    /**
+     * Decoding of stored fields is done in blocks of documents by the decoder threads, up to pipeline depth blocks
+     * ahead of the calling thread, which delivers the decoded values to the collectors in docID order.
+     */
+    private void scanPipelined(ExecutorService executor) throws IOException {
+        final ProgressTracker tracker = new ProgressTracker(FIELDS.toString(), log, reader.maxDoc());
+        final int decoders = settings.getDecoders();
+        // Each decoder needs its own cache as the chunk cache is not thread safe
+        final List<CacheHolder> holders = new ArrayList<>(decoders);
+        final BlockingQueue<CacheHolder> caches = new ArrayBlockingQueue<>(decoders);
+        for (int i = 0 ; i < decoders ; i++) {
+            holders.add(new CacheHolder(createChunkCache()));
+        }
+        caches.addAll(holders);
+        final Deque<Future<Batch>> pending = new ArrayDeque<>(settings.getPipelineDepth());
+        final BytesRef scratch = new BytesRef();
+        int nextBlock = 0;
+        long blocks = 0;
+        long readyBlocks = 0;
+        long waitNS = 0;
+        try {
+            while (nextBlock < reader.maxDoc() || !pending.isEmpty()) {
+                while (nextBlock < reader.maxDoc() && pending.size() < settings.getPipelineDepth()) {
+                    pending.add(executor.submit(new BlockDecoder(
+                            nextBlock, Math.min(reader.maxDoc(), nextBlock + BLOCK_SIZE), caches)));
+                    nextBlock += BLOCK_SIZE;
+                }
+                final Future<Batch> next = pending.removeFirst();
+                if (next.isDone()) {
+                    readyBlocks++;
+                }
+                final long waitStart = System.nanoTime();
+                final Batch batch = getResult(next);
+                waitNS += System.nanoTime() - waitStart;
+                blocks++;
+                batch.deliver(slots, scratch);
+                tracker.ping(batch.endDoc-1);
+            }
+        } finally {
+            if (!pending.isEmpty()) { // Failure: The decoders must be stopped before their caches are closed
+                for (Future<Batch> future: pending) {
+                    future.cancel(true);
+                }
+                executor.shutdownNow();
+                try {
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            IOUtils.close(holders);
+        }
+        log.info(String.format(
+                "Pipelined scan of %d docs with %d decoder threads and pipeline depth %d: " +
+                "%d blocks of up to %d docs, %d%% ready when needed, %dms waiting for decoding",
+                reader.maxDoc(), decoders, settings.getPipelineDepth(), blocks, BLOCK_SIZE,
+                blocks == 0 ? 100 : readyBlocks * 100 / blocks, waitNS / 1000000));
+    }
+
+    private <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for stored value extraction", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException("Exception extracting stored values", e.getCause());
+        }
+    }
+
+    /**
+     * Decodes the stored values for a block of documents, using a chunk cache from the shared pool.
+     */
+    private class BlockDecoder implements Callable<Batch> {
+        private final int startDoc;
+        private final int endDoc;
+        private final BlockingQueue<CacheHolder> caches;
+
+        public BlockDecoder(int startDoc, int endDoc, BlockingQueue<CacheHolder> caches) {
+            this.startDoc = startDoc;
+            this.endDoc = endDoc;
+            this.caches = caches;
+        }
+
+        @Override
+        public Batch call() throws Exception {
+            final CacheHolder holder = caches.take();
+            try {
+                final Batch batch = new Batch(startDoc, endDoc);
+                holder.visitor.setBatch(batch);
+                for (int docID = startDoc ; docID < endDoc ; docID++) {
+                    if (liveDocs != null && !liveDocs.get(docID)) {
+                        continue;
+                    }
+                    holder.visitor.setDocID(docID);
+                    visitDocument(holder.cache, docID, holder.visitor);
+                }
+                return batch;
+            } finally {
+                caches.add(holder);
+            }
+        }
+    }
+
+    // A chunk cache, which might be null, and a visitor for use by a single decoder at a time
+    private class CacheHolder implements Closeable {
+        public final StoredFieldsChunkCache cache;
+        public final BatchingVisitor visitor = new BatchingVisitor();
+
+        public CacheHolder(StoredFieldsChunkCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (cache != null) {
+                cache.close();
+            }
+        }
+    }
+
+    private StoredFieldsChunkCache createChunkCache() throws IOException {
+        return settings.getChunkCacheMB() == 0 ? null : StoredFieldsChunkCache.create(reader, 0);
+    }
+
+    private void visitDocument(StoredFieldsChunkCache cache, int docID, StoredFieldVisitor visitor)
+            throws IOException {
+        if (cache == null) {
+            reader.document(docID, visitor);
+        } else {
+            cache.visitDocument(docID, visitor);
+        }
+    }
+
+    // The collectors are independent, so post-processing (sorting of values) is done in parallel when possible
+    private void finishCollectors(ExecutorService executor) throws IOException {
+        if (executor == null || slots.length < 2) {
+            for (FieldCollector collector: slots) {
+                collector.finish();
+            }
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>(slots.length);
+        for (final FieldCollector collector: slots) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    collector.finish();
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future: futures) {
+            getResult(future);
+        }
+    }
+
+    @Override
+    public Bits getDocsWithField(String field) {
+        return getCollector(field).getDocsWithField();
+    }
+
+    @Override
+    public NumericDocValuesWrapper getNumericDocValues(String field) {
+        return ((NumericDocValuesWrapper.Collector)getCollector(field)).getDocValues();
+    }
+
+    @Override
+    public BinaryDocValuesWrapper getBinaryDocValues(String field) {
+        return ((BinaryDocValuesWrapper.Collector)getCollector(field)).getDocValues();
+    }
+
+    @Override
+    public SortedDocValuesWrapper getSortedDocValues(String field) {
+        return ((SortedDocValuesWrapper.Collector)getCollector(field)).getDocValues();
+    }
+
+    @Override
+    public SortedSetDocValuesWrapper getSortedSetDocValues(String field) {
+        return ((SortedSetDocValuesWrapper.Collector)getCollector(field)).getDocValues();
+    }
+
+    /**
+     * Selects the stored values to extract, addressed by field number, and delivers them with the slot of the
+     * collector for the field. Text is encoded to UTF-8 and binary values are wrapped in a BytesRef that is
+     * re-used for all values. Numbers are delivered as primitives. When all fields are first-value-only, the rest
+     * of a document is skipped as soon as all fields has been seen.
+     */
+    private abstract class SelectingVisitor extends StoredFieldVisitor {
+        private final int[] slotByNumber; // -1 for fields that are not extracted
+        private final int[] seenInDoc; // docID+1 for the last document where the field was seen
+        private final int firstValueFields; // Number of first-value-only fields present in the segment
+        private final boolean canStop; // True if all fields are first-value-only
+        private final BytesRef text = new BytesRef(); // UTF-8 buffer, grown as needed
+        private final BytesRef binary = new BytesRef();
+        protected int docID;
+        private int missing;
+
+        public SelectingVisitor() {
+            int maxNumber = -1;
+            for (FieldInfo fieldInfo: reader.getFieldInfos()) {
+                maxNumber = Math.max(maxNumber, fieldInfo.number);
+            }
+            slotByNumber = new int[maxNumber+1];
+            Arrays.fill(slotByNumber, -1);
+            seenInDoc = new int[maxNumber+1];
+            int firstValue = 0;
+            boolean allFirstValue = true;
+            for (int slot = 0 ; slot < slots.length ; slot++) {
+                FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(slots[slot].getDVConfig().getName());
+                if (fieldInfo == null) {
+                    continue; // Not present in this segment
+                }
+                slotByNumber[fieldInfo.number] = slot;
+                if (slots[slot].isFirstValueOnly()) {
+                    firstValue++;
+                } else {
+                    allFirstValue = false;
+                }
+            }
+            firstValueFields = firstValue;
+            canStop = allFirstValue;
+        }
+
+        public void setDocID(int docID) {
+            this.docID = docID;
+            missing = firstValueFields;
+        }
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) throws IOException {
+            if (canStop && missing == 0) {
+                return Status.STOP;
+            }
+            final int slot = fieldInfo.number < slotByNumber.length ? slotByNumber[fieldInfo.number] : -1;
+            if (slot == -1) {
+                return Status.NO;
+            }
+            if (slots[slot].isFirstValueOnly()) {
+                if (seenInDoc[fieldInfo.number] == docID+1) {
+                    return Status.NO;
+                }
+                seenInDoc[fieldInfo.number] = docID+1;
+                missing--;
+            }
+            return Status.YES;
+        }
+
+        @Override
+        public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+            binary.bytes = value;
+            binary.length = value.length;
+            collect(slotByNumber[fieldInfo.number], binary);
+        }
+
+        @Override
+        public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+            UnicodeUtil.UTF16toUTF8(value, 0, value.length(), text);
+            collect(slotByNumber[fieldInfo.number], text);
+        }
+
+        @Override
+        public void intField(FieldInfo fieldInfo, int value) throws IOException {
+            collect(slotByNumber[fieldInfo.number], (long) value);
+        }
+
+        @Override
+        public void longField(FieldInfo fieldInfo, long value) throws IOException {
+            collect(slotByNumber[fieldInfo.number], value);
+        }
+
+        @Override
+        public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+            collect(slotByNumber[fieldInfo.number], value);
+        }
+
+        @Override
+        public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+            collect(slotByNumber[fieldInfo.number], value);
+        }
+
+        protected abstract void collect(int slot, BytesRef value) throws IOException;
+        protected abstract void collect(int slot, long value) throws IOException;
+        protected abstract void collect(int slot, float value) throws IOException;
+        protected abstract void collect(int slot, double value) throws IOException;
+    }
+
+    /**
+     * Delivers the values directly to the collectors.
+     */
+    private class CollectingVisitor extends SelectingVisitor {
+        @Override
+        protected void collect(int slot, BytesRef value) throws IOException {
+            slots[slot].collect(docID, value);
+        }
+
+        @Override
+        protected void collect(int slot, long value) throws IOException {
+            slots[slot].collect(docID, value);
+        }
+
+        @Override
+        protected void collect(int slot, float value) throws IOException {
+            slots[slot].collect(docID, value);
+        }
+
+        @Override
+        protected void collect(int slot, double value) throws IOException {
+            slots[slot].collect(docID, value);
+        }
+    }
+
+    /**
+     * Records the values in a {@link Batch}, for later delivery to the collectors.
+     */
+    private class BatchingVisitor extends SelectingVisitor {
+        private Batch batch;
+
+        public void setBatch(Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        protected void collect(int slot, BytesRef value) {
+            batch.add(docID, slot, value);
+        }
+
+        @Override
+        protected void collect(int slot, long value) {
+            batch.add(docID, slot, Batch.LONG, value);
+        }
+
+        @Override
+        protected void collect(int slot, float value) {
+            batch.add(docID, slot, Batch.FLOAT, Float.floatToRawIntBits(value));
+        }
+
+        @Override
+        protected void collect(int slot, double value) {
+            batch.add(docID, slot, Batch.DOUBLE, Double.doubleToRawLongBits(value));
+        }
+    }
+
+    /**
+     * The decoded values for a block of documents, in the order they were visited. Binary and text values are
+     * stored back to back as bytes.
+     */
+    private static class Batch {
+        public static final byte BYTES = 0;
+        public static final byte LONG = 1;
+        public static final byte FLOAT = 2;
+        public static final byte DOUBLE = 3;
+
+        public final int startDoc;
+        public final int endDoc; // Exclusive
+        private int size = 0;
+        private int[] docIDs = new int[64];
+        private int[] slots = new int[64];
+        private byte[] types = new byte[64];
+        private long[] values = new long[64]; // Number bits or start in bytes
+        private int[] lengths = new int[64];
+        private byte[] bytes = new byte[1024];
+        private int bytesSize = 0;
+
+        public Batch(int startDoc, int endDoc) {
+            this.startDoc = startDoc;
+            this.endDoc = endDoc;
+        }
+
+        public void add(int docID, int slot, BytesRef value) {
+            if (bytesSize + value.length > bytes.length) {
+                bytes = ArrayUtil.grow(bytes, bytesSize + value.length);
+            }
+            System.arraycopy(value.bytes, value.offset, bytes, bytesSize, value.length);
+            add(docID, slot, BYTES, bytesSize);
+            lengths[size-1] = value.length;
+            bytesSize += value.length;
+        }
+
+        public void add(int docID, int slot, byte type, long value) {
+            if (size == docIDs.length) {
+                docIDs = ArrayUtil.grow(docIDs);
+                slots = ArrayUtil.grow(slots, docIDs.length);
+                types = ArrayUtil.grow(types, docIDs.length);
+                values = ArrayUtil.grow(values, docIDs.length);
+                lengths = ArrayUtil.grow(lengths, docIDs.length);
+            }
+            docIDs[size] = docID;
+            slots[size] = slot;
+            types[size] = type;
+            values[size] = value;
+            size++;
+        }
+
+        public void deliver(FieldCollector[] collectors, BytesRef scratch) throws IOException {
+            scratch.bytes = bytes;
+            for (int i = 0 ; i < size ; i++) {
+                final FieldCollector collector = collectors[slots[i]];
+                switch (types[i]) {
+                    case BYTES:
+                        scratch.offset = (int) values[i];
+                        scratch.length = lengths[i];
+                        collector.collect(docIDs[i], scratch);
+                        break;
+                    case LONG: collector.collect(docIDs[i], values[i]); break;
+                    case FLOAT: collector.collect(docIDs[i], Float.intBitsToFloat((int) values[i])); break;
+                    case DOUBLE: collector.collect(docIDs[i], Double.longBitsToDouble(values[i])); break;
+                    default: throw new IllegalStateException("Unknown value type " + types[i]);
+                }
+            }
+        }
+    }
+
+    private FieldCollector getCollector(String field) {
+        FieldCollector collector = collectors.get(field);
+        if (collector == null) {
+            throw new IllegalArgumentException("The field '" + field + "' was not extracted");
+        }
+        return collector;
+    }
+}
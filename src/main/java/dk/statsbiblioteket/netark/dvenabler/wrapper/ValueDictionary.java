@@ -0,0 +1,196 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PagedBytes;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.packed.MonotonicAppendingLongBuffer;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Unique values in sorted order, stored in shared byte blocks without per-value objects.
+ * </p><p>
+ * The values are grouped in blocks of {@link #BLOCK_SIZE}. The first value in each block is stored in full and
+ * the rest are front-coded: The length of the prefix shared with the previous value, followed by the remaining
+ * suffix. The start of each block is kept in a monotonic packed structure, which is used for binary search.
+ * </p><p>
+ * Values must be added in sorted order and {@link #freeze()} must be called before lookups. Lookups are done
+ * through a {@link Cursor}, which holds the decoding state and must not be shared between threads.
+ */
+public class ValueDictionary {
+    public static final int BLOCK_SHIFT = 4;
+    public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE-1;
+
+    private final PagedBytes bytes = new PagedBytes(15);
+    private final PagedBytes.PagedBytesDataOutput out = bytes.getDataOutput();
+    private final MonotonicAppendingLongBuffer blockOffsets = new MonotonicAppendingLongBuffer(PackedInts.COMPACT);
+    private final BytesRef previous = new BytesRef();
+    private long size = 0;
+    private boolean frozen = false;
+
+    /**
+     * @param value the next value. Must be larger than the previously added value.
+     */
+    public void add(BytesRef value) {
+        if (frozen) {
+            throw new IllegalStateException("The dictionary is frozen");
+        }
+        if ((size & BLOCK_MASK) == 0) {
+            blockOffsets.add(out.getPosition());
+            writeVInt(value.length);
+            out.writeBytes(value.bytes, value.offset, value.length);
+        } else {
+            final int prefix = StringHelper.bytesDifference(previous, value);
+            writeVInt(prefix);
+            writeVInt(value.length-prefix);
+            out.writeBytes(value.bytes, value.offset+prefix, value.length-prefix);
+        }
+        previous.copyBytes(value);
+        size++;
+    }
+
+    private void writeVInt(int i) {
+        while ((i & ~0x7F) != 0) {
+            out.writeByte((byte)((i & 0x7F) | 0x80));
+            i >>>= 7;
+        }
+        out.writeByte((byte)i);
+    }
+
+    public ValueDictionary freeze() {
+        blockOffsets.freeze();
+        bytes.freeze(true);
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * @return a new Cursor for lookups. Cursors are cheap to create.
+     */
+    public Cursor cursor() {
+        if (!frozen) {
+            throw new IllegalStateException("The dictionary must be frozen before lookups");
+        }
+        return new Cursor();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long ramBytesUsed() {
+        return bytes.ramBytesUsed() + blockOffsets.ramBytesUsed();
+    }
+
+    /**
+     * Decodes values from the dictionary. Sequential lookups in increasing order within a block are cheap.
+     * Not thread safe.
+     */
+    public class Cursor {
+        private final PagedBytes.PagedBytesDataInput in = bytes.getDataInput();
+        private final BytesRef term = new BytesRef();
+        private long ord = -1; // The ord for the current term
+
+        /**
+         * @param ord the ordinal for the wanted value.
+         * @return the value for the ordinal. The content is valid until the next call to the Cursor and must not
+         *         be modified. For an empty dictionary, the empty value is returned as Lucene's empty DocValues do.
+         */
+        public BytesRef lookup(long ord) {
+            if (size == 0) {
+                term.length = 0;
+                return term;
+            }
+            if (this.ord == -1 || this.ord > ord || this.ord >>> BLOCK_SHIFT != ord >>> BLOCK_SHIFT) {
+                seekBlock(ord >>> BLOCK_SHIFT);
+            }
+            while (this.ord < ord) {
+                next();
+            }
+            return term;
+        }
+
+        /**
+         * @param value the value to search for.
+         * @return the ordinal for the value if present, else {@code -insertionPoint-1}.
+         */
+        public long find(BytesRef value) {
+            if (size == 0) {
+                return -1; // Insertion point 0. There are no blocks to search
+            }
+            // Binary search for the last block with a first value <= the wanted value
+            long low = 0;
+            long high = ((size-1) >>> BLOCK_SHIFT);
+            while (low <= high) {
+                final long mid = (low + high) >>> 1;
+                seekBlock(mid);
+                final int diff = term.compareTo(value);
+                if (diff < 0) {
+                    low = mid + 1;
+                } else if (diff > 0) {
+                    high = mid - 1;
+                } else {
+                    return ord;
+                }
+            }
+            if (high < 0) {
+                return -1; // Insertion point 0
+            }
+            // Linear scan in the block
+            seekBlock(high);
+            final long blockEnd = Math.min(size, (high+1) << BLOCK_SHIFT);
+            while (ord+1 < blockEnd) {
+                next();
+                final int diff = term.compareTo(value);
+                if (diff == 0) {
+                    return ord;
+                } else if (diff > 0) {
+                    return -ord-1;
+                }
+            }
+            return -(ord+1)-1;
+        }
+
+        private void seekBlock(long block) {
+            in.setPosition(blockOffsets.get(block));
+            final int length = readVInt();
+            term.grow(length);
+            in.readBytes(term.bytes, 0, length);
+            term.length = length;
+            ord = block << BLOCK_SHIFT;
+        }
+
+        private void next() {
+            final int prefix = readVInt();
+            final int suffix = readVInt();
+            term.grow(prefix+suffix);
+            in.readBytes(term.bytes, prefix, suffix);
+            term.length = prefix+suffix;
+            ord++;
+        }
+
+        private int readVInt() {
+            byte b = in.readByte();
+            int i = b & 0x7F;
+            for (int shift = 7 ; (b & 0x80) != 0 ; shift += 7) {
+                b = in.readByte();
+                i |= (b & 0x7F) << shift;
+            }
+            return i;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.util.ByteBlockPool;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.Counter;
+import org.apache.lucene.util.OfflineSorter;
+import org.apache.lucene.util.packed.AppendingPackedLongBuffer;
+import org.apache.lucene.util.packed.MonotonicAppendingLongBuffer;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * Collects (docID, value) pairs for a field and resolves them to a sorted {@link ValueDictionary} and ordinals.
+ * </p><p>
+ * Unique values are kept in a BytesRefHash until the heap budget is exceeded. After that all pairs are written to
+ * a temporary file and sorted with Lucene's OfflineSorter, which sorts bounded runs in memory and merges them on
+ * storage. Memory usage for the sorting is thus capped by the budget, independent of the number of unique values.
+ */
+public class ValueSorter {
+    private static Log log = LogFactory.getLog(ValueSorter.class);
+
+    /**
+     * Receives the resolved ordinals.
+     */
+    public interface OrdinalConsumer {
+        /**
+         * Called once for each pair added to the ValueSorter. The order of calls is not defined.
+         * @param docID the document from the pair.
+         * @param ord   the ordinal for the value from the pair.
+         */
+        void ord(int docID, long ord);
+    }
+
+    private static final int CHECK_EVERY = 1024; // Number of adds between heap budget checks
+    // BytesRefHash addresses its entries and its byte pool with ints. Spill well before either limit is reached,
+    // so that fields with more than 2^31 unique values are handled on storage with long ordinals
+    private static final int MAX_IN_MEMORY_VALUES = 1 << 28;
+    private static final long MAX_IN_MEMORY_BYTES = 1L << 30;
+    private static final int DOCID_BYTES = 4;
+    // OfflineSorter uses a short to hold the length of each record
+    private static final int MAX_VALUE_LENGTH = Short.MAX_VALUE - DOCID_BYTES;
+    // OfflineSorter rejects buffers that cannot be addressed with an int
+    private static final long MAX_OFFLINE_BUFFER_MB = Integer.MAX_VALUE / 1048576;
+
+    private final String field;
+    private final long heapBudget;
+    private final File tempDir;
+
+    // In-memory mode
+    private Counter bytesUsed = Counter.newCounter();
+    private BytesRefHash hash = new BytesRefHash(
+            new ByteBlockPool(new ByteBlockPool.DirectTrackingAllocator(bytesUsed)),
+            BytesRefHash.DEFAULT_CAPACITY,
+            new BytesRefHash.DirectBytesStartArray(BytesRefHash.DEFAULT_CAPACITY, bytesUsed));
+    private MonotonicAppendingLongBuffer docIDs = new MonotonicAppendingLongBuffer(PackedInts.COMPACT);
+    private AppendingPackedLongBuffer ids = new AppendingPackedLongBuffer(PackedInts.COMPACT);
+
+    // Offline mode
+    private File unsorted = null;
+    private OfflineSorter.ByteSequencesWriter writer = null;
+    private final BytesRef record = new BytesRef(DOCID_BYTES);
+
+    private long pairs = 0;
+
+    /**
+     * @param field      the field that the values belongs to. Used for logging.
+     * @param heapBudget the maximum number of bytes to use for holding and sorting values.
+     * @param tempDir    where to store temporary files. If null, the system default is used.
+     */
+    public ValueSorter(String field, long heapBudget, File tempDir) {
+        this.field = field;
+        this.heapBudget = heapBudget;
+        this.tempDir = tempDir;
+    }
+
+    public void add(int docID, BytesRef value) throws IOException {
+        pairs++;
+        if (writer != null) {
+            write(docID, value);
+            return;
+        }
+        final int id = hash.add(value);
+        docIDs.add(docID);
+        ids.add(id < 0 ? -id-1 : id);
+        if ((pairs % CHECK_EVERY == 0 && ramBytesUsed() > heapBudget)
+            || hash.size() >= MAX_IN_MEMORY_VALUES || bytesUsed.get() >= MAX_IN_MEMORY_BYTES) {
+            spill();
+        }
+    }
+
+    private long ramBytesUsed() {
+        return bytesUsed.get() + docIDs.ramBytesUsed() + ids.ramBytesUsed();
+    }
+
+    // Writes all pairs from the hash to storage and switches to offline mode
+    private void spill() throws IOException {
+        log.info("In-memory limit reached (heap budget " + heapBudget/1048576 + "MB) with " + hash.size()
+                 + " unique values for field '" + field + "'. Switching to sorting on storage");
+        unsorted = File.createTempFile("dvenabler_" + field + "_", ".unsorted", tempDir);
+        writer = new OfflineSorter.ByteSequencesWriter(unsorted);
+        final BytesRef scratch = new BytesRef();
+        for (long i = 0 ; i < docIDs.size() ; i++) {
+            write((int) docIDs.get(i), hash.get((int) ids.get(i), scratch));
+        }
+        hash = null;
+        docIDs = null;
+        ids = null;
+    }
+
+    // Records are the value bytes followed by the docID as 4 big-endian bytes
+    private void write(int docID, BytesRef value) throws IOException {
+        if (value.length > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException(
+                    "The value for field '" + field + "' in doc " + docID + " was " + value.length
+                    + " bytes long. Only values up to " + MAX_VALUE_LENGTH + " bytes are supported");
+        }
+        record.grow(value.length + DOCID_BYTES);
+        System.arraycopy(value.bytes, value.offset, record.bytes, 0, value.length);
+        record.bytes[value.length] = (byte) (docID >>> 24);
+        record.bytes[value.length+1] = (byte) (docID >>> 16);
+        record.bytes[value.length+2] = (byte) (docID >>> 8);
+        record.bytes[value.length+3] = (byte) docID;
+        record.length = value.length + DOCID_BYTES;
+        writer.write(record);
+    }
+
+    /**
+     * Sorts the unique values and resolves the ordinals for all added pairs. This can only be called once.
+     * @param consumer receives the docID and the ordinal for each pair.
+     * @return a dictionary with all unique values in sorted order.
+     * @throws IOException if offline sorting failed.
+     */
+    public ValueDictionary resolve(OrdinalConsumer consumer) throws IOException {
+        final long startTime = System.nanoTime();
+        ValueDictionary dictionary = writer == null ? resolveInMemory(consumer) : resolveOffline(consumer);
+        log.info("Resolved " + dictionary.size() + " unique values from " + pairs + " pairs for field '" + field
+                 + "' " + (writer == null ? "in memory" : "on storage") + " in "
+                 + (System.nanoTime()-startTime)/1000000 + "ms");
+        return dictionary;
+    }
+
+    private ValueDictionary resolveInMemory(OrdinalConsumer consumer) {
+        final int[] sortedIDs = hash.sort(BytesRef.getUTF8SortedAsUnicodeComparator());
+        final int[] idToOrd = new int[hash.size()];
+        final ValueDictionary dictionary = new ValueDictionary();
+        final BytesRef scratch = new BytesRef();
+        for (int ord = 0 ; ord < idToOrd.length ; ord++) {
+            idToOrd[sortedIDs[ord]] = ord;
+            dictionary.add(hash.get(sortedIDs[ord], scratch));
+        }
+        hash = null;
+        for (long i = 0 ; i < docIDs.size() ; i++) {
+            consumer.ord((int) docIDs.get(i), idToOrd[(int) ids.get(i)]);
+        }
+        docIDs = null;
+        ids = null;
+        return dictionary.freeze();
+    }
+
+    private ValueDictionary resolveOffline(OrdinalConsumer consumer) throws IOException {
+        writer.close();
+        File sorted = File.createTempFile("dvenabler_" + field + "_", ".sorted", tempDir);
+        try {
+            OfflineSorter sorter = new OfflineSorter(
+                    RECORD_COMPARATOR, OfflineSorter.BufferSize.megabytes(
+                            Math.max(1, Math.min(MAX_OFFLINE_BUFFER_MB, heapBudget/1048576))),
+                    tempDir == null ? OfflineSorter.defaultTempDir() : tempDir, OfflineSorter.MAX_TEMPFILES);
+            log.debug("Sorting " + pairs + " pairs for field '" + field + "' on storage");
+            sorter.sort(unsorted, sorted);
+            if (!unsorted.delete()) {
+                log.warn("Unable to delete temporary file " + unsorted);
+            }
+
+            final ValueDictionary dictionary = new ValueDictionary();
+            final BytesRef previous = new BytesRef();
+            final BytesRef value = new BytesRef();
+            long ord = -1;
+            OfflineSorter.ByteSequencesReader reader = new OfflineSorter.ByteSequencesReader(sorted);
+            try {
+                while (reader.read(record)) {
+                    value.bytes = record.bytes;
+                    value.offset = record.offset;
+                    value.length = record.length - DOCID_BYTES;
+                    if (ord == -1 || !previous.bytesEquals(value)) {
+                        ord++;
+                        dictionary.add(value);
+                        previous.copyBytes(value);
+                    }
+                    final int o = record.offset + value.length;
+                    final int docID = ((record.bytes[o] & 0xFF) << 24) | ((record.bytes[o+1] & 0xFF) << 16) |
+                                      ((record.bytes[o+2] & 0xFF) << 8) | (record.bytes[o+3] & 0xFF);
+                    consumer.ord(docID, ord);
+                }
+            } finally {
+                reader.close();
+            }
+            return dictionary.freeze();
+        } finally {
+            if (unsorted.exists() && !unsorted.delete()) {
+                log.warn("Unable to delete temporary file " + unsorted);
+            }
+            if (!sorted.delete()) {
+                log.warn("Unable to delete temporary file " + sorted);
+            }
+        }
+    }
+
+    // Orders by value, then by docID. As docIDs are non-negative, unsigned byte order works for them too.
+    private static final Comparator<BytesRef> RECORD_COMPARATOR = new Comparator<BytesRef>() {
+        @Override
+        public int compare(BytesRef r1, BytesRef r2) {
+            final int length1 = r1.length - DOCID_BYTES;
+            final int length2 = r2.length - DOCID_BYTES;
+            final int common = Math.min(length1, length2);
+            for (int i = 0 ; i < common ; i++) {
+                final int diff = (r1.bytes[r1.offset+i] & 0xFF) - (r2.bytes[r2.offset+i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            if (length1 != length2) {
+                return length1 - length2;
+            }
+            for (int i = 0 ; i < DOCID_BYTES ; i++) {
+                final int diff = (r1.bytes[r1.offset+length1+i] & 0xFF) - (r2.bytes[r2.offset+length2+i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return 0;
+        }
+    };
+}
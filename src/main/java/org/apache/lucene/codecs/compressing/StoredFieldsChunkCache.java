@@ -0,0 +1,333 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.lucene.codecs.compressing;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.codecs.lucene40.Lucene40StoredFieldsWriter;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stored fields in Lucene 4.1+ are compressed in chunks of multiple documents and Lucene decompresses the chunk
+ * (up to the wanted document) for every single document request. When documents are requested one at a time,
+ * as when an IndexWriter copies the stored fields of a non-segment reader or when values are extracted, each
+ * chunk is decompressed many times.
+ * </p><p>
+ * This cache decompresses whole chunks and keeps them, keyed by the first docID in the chunk, with least recently
+ * used eviction when the memory budget is exceeded. Requests for documents in the same chunk are served from the
+ * decompressed block. The cache is not thread safe: Use one cache per thread.
+ * </p><p>
+ * Placed in the Lucene package as the chunk layout classes are package private.
+ */
+public class StoredFieldsChunkCache implements Closeable {
+    private static Log log = LogFactory.getLog(StoredFieldsChunkCache.class);
+
+    private final String segment;
+    private final FieldInfos fieldInfos;
+    private final long budget;
+    private final Directory cfsDir; // null if the segment is not a compound file
+    private final IndexInput fieldsStream;
+    private final CompressingStoredFieldsIndexReader indexReader;
+    private final int version;
+    private final int chunkSize;
+    private final int packedIntsVersion;
+    private final Decompressor decompressor;
+
+    private final TreeMap<Integer, Chunk> chunks = new TreeMap<>(); // For locating the chunk for a docID
+    private final LinkedHashMap<Integer, Chunk> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private final BytesRef scratch = new BytesRef();
+    private final ByteArrayDataInput documentInput = new ByteArrayDataInput();
+    private long bytesUsed = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates a cache if the segment behind the reader uses compressed stored fields.
+     * @param reader a possibly wrapped reader for a single segment.
+     * @param budget the maximum number of bytes for decompressed chunks. At least one chunk is always held.
+     * @return a cache for the stored fields of the segment or null if the stored fields are not compressed.
+     * @throws IOException if the stored fields files could not be opened.
+     */
+    public static StoredFieldsChunkCache create(AtomicReader reader, long budget) throws IOException {
+        AtomicReader unwrapped = FilterAtomicReader.unwrap(reader);
+        if (!(unwrapped instanceof SegmentReader)) {
+            return null;
+        }
+        SegmentReader segmentReader = (SegmentReader)unwrapped;
+        StoredFieldsReader fieldsReader = segmentReader.getFieldsReader();
+        if (!(fieldsReader instanceof CompressingStoredFieldsReader)) {
+            return null;
+        }
+        return new StoredFieldsChunkCache(
+                segmentReader, (CompressingStoredFieldsReader)fieldsReader, budget);
+    }
+
+    private StoredFieldsChunkCache(SegmentReader reader, CompressingStoredFieldsReader fieldsReader, long budget)
+            throws IOException {
+        SegmentInfo si = reader.getSegmentInfo().info;
+        segment = si.name;
+        fieldInfos = reader.getFieldInfos();
+        this.budget = budget;
+        version = fieldsReader.getVersion();
+        chunkSize = fieldsReader.getChunkSize();
+        decompressor = fieldsReader.getCompressionMode().newDecompressor();
+
+        cfsDir = si.getUseCompoundFile() ? new CompoundFileDirectory(
+                si.dir, IndexFileNames.segmentFileName(segment, "", IndexFileNames.COMPOUND_FILE_EXTENSION),
+                IOContext.READ, false) : null;
+        final Directory dir = cfsDir == null ? si.dir : cfsDir;
+        IndexInput indexStream = null;
+        IndexInput dataStream = null;
+        boolean success = false;
+        try {
+            indexStream = dir.openInput(IndexFileNames.segmentFileName(
+                    segment, "", Lucene40StoredFieldsWriter.FIELDS_INDEX_EXTENSION), IOContext.READ);
+            skipHeader(indexStream);
+            indexReader = new CompressingStoredFieldsIndexReader(indexStream, si);
+            dataStream = dir.openInput(IndexFileNames.segmentFileName(
+                    segment, "", Lucene40StoredFieldsWriter.FIELDS_EXTENSION), IOContext.READ);
+            if (skipHeader(dataStream) >= CompressingStoredFieldsWriter.VERSION_BIG_CHUNKS) {
+                dataStream.readVInt(); // Chunk size, already known from the reader
+            }
+            packedIntsVersion = dataStream.readVInt();
+            success = true;
+        } finally {
+            if (success) {
+                IOUtils.close(indexStream);
+            } else {
+                IOUtils.closeWhileHandlingException(indexStream, dataStream, cfsDir);
+            }
+        }
+        fieldsStream = dataStream;
+    }
+
+    // The header has already been verified by the reader for the segment, so the codec name is not checked.
+    // Returns the version from the header
+    private int skipHeader(IndexInput in) throws IOException {
+        final int magic = in.readInt();
+        if (magic != CodecUtil.CODEC_MAGIC) {
+            throw new CorruptIndexException("Codec header mismatch: actual header=" + magic + " vs expected header="
+                                            + CodecUtil.CODEC_MAGIC + " (resource: " + in + ")");
+        }
+        in.readString();
+        return in.readInt();
+    }
+
+    /**
+     * Visits the stored fields for the given document, the same way as {@link IndexReader#document(int,
+     * StoredFieldVisitor)}.
+     * @param docID   the document to visit.
+     * @param visitor receives the stored fields.
+     * @throws IOException if the chunk containing the document could not be read.
+     */
+    public void visitDocument(int docID, StoredFieldVisitor visitor) throws IOException {
+        Map.Entry<Integer, Chunk> entry = chunks.floorEntry(docID);
+        Chunk chunk = entry == null ? null : entry.getValue();
+        if (chunk == null || docID >= chunk.docBase + chunk.chunkDocs) {
+            misses++;
+            chunk = readChunk(docID);
+            chunks.put(chunk.docBase, chunk);
+            lru.put(chunk.docBase, chunk);
+            bytesUsed += chunk.ramBytesUsed();
+            evict();
+        } else {
+            hits++;
+            lru.get(chunk.docBase); // Marks the chunk as recently used
+        }
+
+        final int index = docID - chunk.docBase;
+        final int numStoredFields = chunk.numStoredFields[index];
+        documentInput.reset(chunk.bytes, chunk.offsets[index], chunk.offsets[index+1] - chunk.offsets[index]);
+        for (int fieldIDX = 0 ; fieldIDX < numStoredFields ; fieldIDX++) {
+            final long infoAndBits = documentInput.readVLong();
+            final FieldInfo fieldInfo =
+                    fieldInfos.fieldInfo((int) (infoAndBits >>> CompressingStoredFieldsWriter.TYPE_BITS));
+            final int bits = (int) (infoAndBits & CompressingStoredFieldsWriter.TYPE_MASK);
+            switch (visitor.needsField(fieldInfo)) {
+                case YES: readField(documentInput, visitor, fieldInfo, bits); break;
+                case NO: skipField(documentInput, bits); break;
+                case STOP: return;
+            }
+        }
+    }
+
+    // Removes least recently used chunks until the budget is met, keeping at least one
+    private void evict() {
+        Iterator<Chunk> oldest = lru.values().iterator();
+        while (bytesUsed > budget && lru.size() > 1) {
+            Chunk chunk = oldest.next();
+            oldest.remove();
+            chunks.remove(chunk.docBase);
+            bytesUsed -= chunk.ramBytesUsed();
+        }
+    }
+
+    // Mirrors CompressingStoredFieldsReader.visitDocument, except that the whole chunk is decompressed
+    private Chunk readChunk(int docID) throws IOException {
+        fieldsStream.seek(indexReader.getStartPointer(docID));
+        final int docBase = fieldsStream.readVInt();
+        final int chunkDocs = fieldsStream.readVInt();
+        if (docID < docBase || docID >= docBase + chunkDocs || chunkDocs < 1) {
+            throw new CorruptIndexException("docBase=" + docBase + ",chunkDocs=" + chunkDocs + " for docID="
+                                            + docID + " (resource=" + fieldsStream + ")");
+        }
+        final int[] numStoredFields = new int[chunkDocs];
+        final int[] offsets = new int[chunkDocs+1];
+        if (chunkDocs == 1) {
+            numStoredFields[0] = fieldsStream.readVInt();
+            offsets[1] = fieldsStream.readVInt();
+        } else {
+            readPacked(numStoredFields, chunkDocs);
+            final int[] lengths = new int[chunkDocs];
+            readPacked(lengths, chunkDocs);
+            for (int i = 0 ; i < chunkDocs ; i++) {
+                offsets[i+1] = offsets[i] + lengths[i];
+            }
+        }
+        final int totalLength = offsets[chunkDocs];
+
+        final byte[] bytes = new byte[totalLength];
+        if (version >= CompressingStoredFieldsWriter.VERSION_BIG_CHUNKS && totalLength >= 2 * chunkSize) {
+            for (int decompressed = 0 ; decompressed < totalLength ; ) {
+                final int toDecompress = Math.min(totalLength - decompressed, chunkSize);
+                decompressor.decompress(fieldsStream, toDecompress, 0, toDecompress, scratch);
+                System.arraycopy(scratch.bytes, scratch.offset, bytes, decompressed, scratch.length);
+                decompressed += toDecompress;
+            }
+        } else if (totalLength > 0) {
+            decompressor.decompress(fieldsStream, totalLength, 0, totalLength, scratch);
+            if (scratch.length != totalLength) {
+                throw new CorruptIndexException("Corrupted: expected chunk size=" + totalLength + ", got "
+                                                + scratch.length + " (resource=" + fieldsStream + ")");
+            }
+            System.arraycopy(scratch.bytes, scratch.offset, bytes, 0, totalLength);
+        }
+        return new Chunk(docBase, chunkDocs, numStoredFields, offsets, bytes);
+    }
+
+    // Either a single VInt for all documents or a packed block
+    private void readPacked(int[] values, int chunkDocs) throws IOException {
+        final int bitsPerValue = fieldsStream.readVInt();
+        if (bitsPerValue == 0) {
+            final int value = fieldsStream.readVInt();
+            for (int i = 0 ; i < chunkDocs ; i++) {
+                values[i] = value;
+            }
+        } else if (bitsPerValue > 31) {
+            throw new CorruptIndexException("bitsPerValue=" + bitsPerValue + " (resource=" + fieldsStream + ")");
+        } else {
+            final PackedInts.ReaderIterator it = PackedInts.getReaderIteratorNoHeader(
+                    fieldsStream, PackedInts.Format.PACKED, packedIntsVersion, chunkDocs, bitsPerValue, 1);
+            for (int i = 0 ; i < chunkDocs ; i++) {
+                values[i] = (int) it.next();
+            }
+        }
+    }
+
+    private static void readField(DataInput in, StoredFieldVisitor visitor, FieldInfo info, int bits)
+            throws IOException {
+        switch (bits & CompressingStoredFieldsWriter.TYPE_MASK) {
+            case CompressingStoredFieldsWriter.BYTE_ARR: {
+                byte[] data = new byte[in.readVInt()];
+                in.readBytes(data, 0, data.length);
+                visitor.binaryField(info, data);
+                break;
+            }
+            case CompressingStoredFieldsWriter.STRING: {
+                byte[] data = new byte[in.readVInt()];
+                in.readBytes(data, 0, data.length);
+                visitor.stringField(info, new String(data, StandardCharsets.UTF_8));
+                break;
+            }
+            case CompressingStoredFieldsWriter.NUMERIC_INT:
+                visitor.intField(info, in.readInt());
+                break;
+            case CompressingStoredFieldsWriter.NUMERIC_FLOAT:
+                visitor.floatField(info, Float.intBitsToFloat(in.readInt()));
+                break;
+            case CompressingStoredFieldsWriter.NUMERIC_LONG:
+                visitor.longField(info, in.readLong());
+                break;
+            case CompressingStoredFieldsWriter.NUMERIC_DOUBLE:
+                visitor.doubleField(info, Double.longBitsToDouble(in.readLong()));
+                break;
+            default: throw new AssertionError("Unknown type flag: " + Integer.toHexString(bits));
+        }
+    }
+
+    private static void skipField(DataInput in, int bits) throws IOException {
+        switch (bits & CompressingStoredFieldsWriter.TYPE_MASK) {
+            case CompressingStoredFieldsWriter.BYTE_ARR:
+            case CompressingStoredFieldsWriter.STRING:
+                in.skipBytes(in.readVInt());
+                break;
+            case CompressingStoredFieldsWriter.NUMERIC_INT:
+            case CompressingStoredFieldsWriter.NUMERIC_FLOAT:
+                in.readInt();
+                break;
+            case CompressingStoredFieldsWriter.NUMERIC_LONG:
+            case CompressingStoredFieldsWriter.NUMERIC_DOUBLE:
+                in.readLong();
+                break;
+            default: throw new AssertionError("Unknown type flag: " + Integer.toHexString(bits));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.debug("Closing chunk cache for segment " + segment + " with " + hits + " hits and " + misses
+                  + " misses (" + lru.size() + " chunks, " + bytesUsed/1024 + "KB cached)");
+        chunks.clear();
+        lru.clear();
+        IOUtils.close(fieldsStream, cfsDir);
+    }
+
+    /**
+     * A decompressed chunk of documents.
+     */
+    private static class Chunk {
+        public final int docBase;
+        public final int chunkDocs;
+        public final int[] numStoredFields;
+        public final int[] offsets; // chunkDocs+1 entries
+        public final byte[] bytes;
+
+        public Chunk(int docBase, int chunkDocs, int[] numStoredFields, int[] offsets, byte[] bytes) {
+            this.docBase = docBase;
+            this.chunkDocs = chunkDocs;
+            this.numStoredFields = numStoredFields;
+            this.offsets = offsets;
+            this.bytes = bytes;
+        }
+
+        public long ramBytesUsed() {
+            return bytes.length + 8L * chunkDocs + 64;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.lucene.index;
+
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+
+/**
+ * Lucene only allows commits of segment information through IndexWriter. When DocValues files are added to
+ * existing segments without an IndexWriter, the segment information must be committed directly.
+ * </p><p>
+ * Placed in the Lucene package as {@link SegmentInfos#commit(Directory)} is package private.
+ */
+public class SegmentInfosCommitter {
+
+    /**
+     * Writes the segments file for the given segment information, making it the current commit in the directory.
+     * All files referenced by the segments must have been written and synced before calling this method.
+     * @param infos     the segment information to commit.
+     * @param directory where to write the segments file.
+     * @throws IOException if the segments file could not be written.
+     */
+    public static void commit(SegmentInfos infos, Directory directory) throws IOException {
+        infos.commit(directory);
+    }
+}
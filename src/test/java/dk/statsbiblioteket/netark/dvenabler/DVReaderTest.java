@@ -15,20 +15,31 @@
 package dk.statsbiblioteket.netark.dvenabler;
 
 import dk.statsbiblioteket.netark.dvenabler.wrapper.DVDirectoryReader;
+import dk.statsbiblioteket.netark.dvenabler.wrapper.DocValuesCache;
+import dk.statsbiblioteket.netark.dvenabler.wrapper.DVAtomicReader;
+import dk.statsbiblioteket.netark.dvenabler.wrapper.PersistentDocValues;
 import junit.framework.TestCase;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.compressing.StoredFieldsChunkCache;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.Version;
@@ -36,6 +47,7 @@ import org.apache.lucene.util.Version;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class DVReaderTest extends TestCase {
     private static Log log = LogFactory.getLog(DVReaderTest.class);
@@ -56,6 +68,11 @@ public class DVReaderTest extends TestCase {
     private static final float FLOAT_CONTENT = 18.5f;
     private static final long LONG_CONTENT = 87L;
     private static final String LONG = "long";
+    private static final String BINARY = "binary";
+    private static final String POSTINGS_SINGLE = "postingssingle";
+    private static final String POSTINGS_MULTI = "postingsmulti";
+    private static final String POSTINGS_LONG = "postingslong";
+    private static final String POSTINGS_DOUBLE = "postingsdouble";
 
     private static final Version LUCENE_VERSION = Version.LUCENE_48;
 
@@ -85,6 +102,199 @@ public class DVReaderTest extends TestCase {
         }
     }
 
+    public void testDocValuesCache() throws IOException {
+        log.info("testDocValuesCache started");
+        final File INDEX = generateIndex(1000);
+        try {
+            Set<DVConfig> dvConfigs = createDVFieldDescriptions(INDEX);
+            // No budget, so only the latest extraction is kept
+            DVDirectoryReader reader = new DVDirectoryReader(
+                    DirectoryReader.open(MMapDirectory.open(INDEX)), dvConfigs, new DVSettings().setCacheMB(0));
+            DocValuesCache cache = reader.getCache();
+            assertEquals("The index should have 2 segments", 2, reader.leaves().size());
+            AtomicReader first = reader.leaves().get(0).reader();
+            AtomicReader second = reader.leaves().get(1).reader();
+
+            long[] longs = getLongs(first.getNumericDocValues(LONG), first.maxDoc());
+            assertEquals("All fields should be extracted in a single pass", dvConfigs.size(), cache.size());
+            first.getSortedDocValues(SINGLE);
+            first.getSortedSetDocValues(MULTI);
+            assertEquals("Repeated requests should not extract", dvConfigs.size(), cache.size());
+
+            second.getSortedDocValues(SINGLE);
+            assertEquals("The fields for the first segment should be evicted", dvConfigs.size(), cache.size());
+            assertTrue("Values should be the same after re-extraction",
+                       Arrays.equals(longs, getLongs(first.getNumericDocValues(LONG), first.maxDoc())));
+
+            reader.close();
+            assertEquals("The cache should be empty after close", 0, cache.size());
+        } finally {
+            delete(INDEX);
+        }
+    }
+
+    public void testReopenReusesDocValues() throws IOException {
+        log.info("testReopenReusesDocValues started");
+        final File INDEX = generateIndex(1000);
+        try {
+            Set<DVConfig> dvConfigs = createDVFieldDescriptions(INDEX);
+            DVDirectoryReader reader = new DVDirectoryReader(
+                    DirectoryReader.open(MMapDirectory.open(INDEX)), dvConfigs);
+            DocValuesCache cache = reader.getCache();
+            AtomicReader first = reader.leaves().get(0).reader();
+            NumericDocValues longs = first.getNumericDocValues(LONG);
+
+            IndexWriter writer = new IndexWriter(MMapDirectory.open(INDEX), new IndexWriterConfig(
+                    LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION)));
+            Document document = new Document();
+            document.add(new StringField(ID, "new", Field.Store.YES));
+            writer.addDocument(document);
+            writer.deleteDocuments(new Term(ID, "0"));
+            writer.close();
+
+            DVDirectoryReader reopened = (DVDirectoryReader)DirectoryReader.openIfChanged(reader);
+            assertNotNull("The index should be changed", reopened);
+            assertEquals("The reopened index should have a new segment", 3, reopened.leaves().size());
+            AtomicReader reopenedFirst = reopened.leaves().get(0).reader();
+            assertNotNull("The first segment should have a deletion", reopenedFirst.getLiveDocs());
+            assertSame("The DocValues for the unchanged segment core should be re-used",
+                       longs, reopenedFirst.getNumericDocValues(LONG));
+
+            reader.close();
+            assertEquals("The DocValues should be kept after closing the old reader", dvConfigs.size(), cache.size());
+            reopened.close();
+            assertEquals("The cache should be empty after close of all readers", 0, cache.size());
+        } finally {
+            delete(INDEX);
+        }
+    }
+
+    public void testConcurrentExtraction() throws Exception {
+        log.info("testConcurrentExtraction started");
+        final File INDEX = generateIndex(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Set<DVConfig> dvConfigs = createDVFieldDescriptions(INDEX);
+            DVDirectoryReader reader = new DVDirectoryReader(
+                    DirectoryReader.open(MMapDirectory.open(INDEX)), dvConfigs);
+            final AtomicReader first = reader.leaves().get(0).reader();
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<NumericDocValues>> futures = new ArrayList<>();
+            for (int i = 0 ; i < 8 ; i++) {
+                futures.add(executor.submit(new Callable<NumericDocValues>() {
+                    @Override
+                    public NumericDocValues call() throws Exception {
+                        start.await();
+                        return first.getNumericDocValues(LONG);
+                    }
+                }));
+            }
+            start.countDown();
+            NumericDocValues expected = futures.get(0).get();
+            for (Future<NumericDocValues> future: futures) {
+                assertSame("Concurrent requests should share a single extraction", expected, future.get());
+            }
+            assertEquals("All fields should be extracted in a single pass", dvConfigs.size(), reader.getCache().size());
+            reader.close();
+        } finally {
+            executor.shutdownNow();
+            delete(INDEX);
+        }
+    }
+
+    public void testWarmup() throws Exception {
+        log.info("testWarmup started");
+        final File INDEX = generateIndex(1000);
+        try {
+            Set<DVConfig> dvConfigs = createDVFieldDescriptions(INDEX);
+            DVDirectoryReader reader = new DVDirectoryReader(
+                    DirectoryReader.open(MMapDirectory.open(INDEX)), dvConfigs, new DVSettings().setWarmupThreads(2));
+            assertNotNull("Warm-up should be started", reader.getWarmup());
+            reader.getWarmup().get();
+            assertEquals("All fields in all segments should be extracted",
+                         dvConfigs.size() * reader.leaves().size(), reader.getCache().size());
+            reader.close();
+        } finally {
+            delete(INDEX);
+        }
+    }
+
+    public void testPersistentDocValues() throws IOException, ParseException {
+        log.info("testPersistentDocValues started");
+        final File INDEX = generateIndex();
+        final File CACHE = new File("target/testcache.deletefreely");
+        try {
+            Set<DVConfig> dvConfigs = createDVFieldDescriptions(INDEX);
+            DVSettings settings = new DVSettings().setCacheDir(CACHE);
+            DVDirectoryReader reader = new DVDirectoryReader(
+                    DirectoryReader.open(MMapDirectory.open(INDEX)), dvConfigs, settings);
+            assertIndexValues(reader, new IndexSearcher(reader), true);
+            PersistentDocValues persistent =
+                    ((DVAtomicReader)reader.leaves().get(0).reader()).getPersistentDocValues();
+            assertEquals("All fields should be stored", dvConfigs.size(), persistent.getWritten());
+            reader.close();
+
+            reader = new DVDirectoryReader(DirectoryReader.open(MMapDirectory.open(INDEX)), dvConfigs, settings);
+            assertIndexValues(reader, new IndexSearcher(reader), true);
+            persistent = ((DVAtomicReader)reader.leaves().get(0).reader()).getPersistentDocValues();
+            assertEquals("Nothing should be stored on reopen", 0, persistent.getWritten());
+            assertTrue("The DocValues should be loaded from storage", persistent.getLoaded() > 0);
+            assertEquals("The stored DocValues should be held off-heap", 0, reader.getCache().ramBytesUsed());
+            reader.close();
+        } finally {
+            delete(INDEX);
+            delete(CACHE);
+        }
+    }
+
+    public void testReopenWithDeletionsExtractsFirst() throws IOException {
+        log.info("testReopenWithDeletionsExtractsFirst started");
+        final File INDEX = generatePostingsIndex(500);
+        final File CACHE = new File("target/testcache.deletefreely.deletions");
+        try {
+            Set<DVConfig> dvConfigs = new HashSet<>(createPostingsDVConfigs(INDEX));
+            DVDirectoryReader reader = new DVDirectoryReader(
+                    DirectoryReader.open(MMapDirectory.open(INDEX)), dvConfigs, new DVSettings().setCacheDir(CACHE));
+            IndexWriter writer = new IndexWriter(MMapDirectory.open(INDEX), new IndexWriterConfig(
+                    LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION)));
+            writer.deleteDocuments(new Term(ID, "3"));
+            writer.close();
+            DVDirectoryReader reopened = (DVDirectoryReader)DirectoryReader.openIfChanged(reader);
+            assertNotNull("The index should be changed", reopened);
+
+            // The reader with the deletion extracts before the reader without
+            AtomicReader reopenedFirst = reopened.leaves().get(0).reader();
+            assertEquals("The deleted doc should have no ordinal in the reopened reader",
+                         -1, reopenedFirst.getSortedDocValues(POSTINGS_SINGLE).getOrd(3));
+            AtomicReader first = reader.leaves().get(0).reader();
+            assertNull("The first reader should have no deletions", first.getLiveDocs());
+            SortedDocValues singles = first.getSortedDocValues(POSTINGS_SINGLE);
+            assertTrue("The doc deleted later should have an ordinal in the first reader", singles.getOrd(3) >= 0);
+            BytesRef value = new BytesRef();
+            singles.lookupOrd(singles.getOrd(3), value);
+            assertEquals("The doc deleted later should have its value in the first reader",
+                         "s_3", value.utf8ToString());
+            assertTrue("The doc deleted later should have a value for " + POSTINGS_LONG + " in the first reader",
+                       first.getDocsWithField(POSTINGS_LONG).get(3));
+            assertFalse("The deleted doc should have no value for " + POSTINGS_LONG + " in the reopened reader",
+                        reopenedFirst.getDocsWithField(POSTINGS_LONG).get(3));
+
+            reader.close();
+            reopened.close();
+        } finally {
+            delete(INDEX);
+            delete(CACHE);
+        }
+    }
+
+    private long[] getLongs(NumericDocValues docValues, int maxDoc) {
+        long[] values = new long[maxDoc];
+        for (int docID = 0 ; docID < maxDoc ; docID++) {
+            values[docID] = docValues.get(docID);
+        }
+        return values;
+    }
+
     public void testDVEnableIndex() throws IOException, ParseException {
         log.info("testDVEnableIndex started");
 
@@ -101,24 +311,538 @@ public class DVReaderTest extends TestCase {
     }
 
     public void testLargerDVEnableIndex() throws IOException {
+        log.info("testLargerDVEnableIndex started");
+        assertLargerDVEnableIndex(new DVSettings(), true);
+    }
+
+    public void testParallelDVEnableIndex() throws IOException {
+        log.info("testParallelDVEnableIndex started");
+        // Segments are added in order of completion, so the order of the documents is not preserved
+        assertLargerDVEnableIndex(new DVSettings().setThreads(3), false);
+    }
+
+    public void testPipelinedDVEnableIndex() throws IOException {
+        log.info("testPipelinedDVEnableIndex started");
+        // Enough documents for multiple decoding blocks per segment
+        assertLargerDVEnableIndex(new DVSettings().setDecoders(3).setPipelineDepth(2), true, 5000);
+        assertLargerDVEnableIndex(new DVSettings().setDecoders(0), true, 5000);
+    }
+
+    public void testCheckpointedDVEnableIndex() throws IOException {
+        log.info("testCheckpointedDVEnableIndex started");
+        // The parts are assembled in source order, so the order of the documents is preserved
+        assertLargerDVEnableIndex(new DVSettings().setCheckpoint(true).setThreads(2), true);
+    }
+
+    public void testCheckpointedEmptySegment() throws IOException {
+        log.info("testCheckpointedEmptySegment started");
+        final File INDEX_SRC = generatePostingsIndex(500);
+        final File INDEX_DEST = new File("target/testindex.deletefreely.checkpoint.dest");
+        try {
+            // Lucene drops fully deleted segments, so the deletion of all documents in the first segment is simulated
+            DirectoryReader source = new AllDeletedFirstSegment(DirectoryReader.open(MMapDirectory.open(INDEX_SRC)));
+            assertEquals("The source should have multiple segments", 2, source.leaves().size());
+            final int firstDocs = source.leaves().get(0).reader().maxDoc();
+            final String secondName = ((SegmentReader)FilterAtomicReader.unwrap(
+                    source.leaves().get(1).reader())).getSegmentName();
+            List<DVConfig> dvConfigs = createPostingsDVConfigs(INDEX_SRC);
+            DVDirectoryReader dvReader = new DVDirectoryReader(source, new HashSet<>(dvConfigs));
+            new SegmentwiseConverter(dvReader, INDEX_DEST, dvConfigs, new DVSettings().setCheckpoint(true))
+                    .convert();
+            dvReader.close();
+
+            IndexReader readerDest = DirectoryReader.open(MMapDirectory.open(INDEX_DEST));
+            assertEquals("The destination should only hold the documents from the second segment",
+                         500 - firstDocs, readerDest.maxDoc());
+            for (int docID = 0 ; docID < readerDest.maxDoc() ; docID++) {
+                assertPostingsValues(readerDest, docID, firstDocs + docID);
+            }
+            final String destName = ((SegmentReader)readerDest.leaves().get(0).reader()).getSegmentName();
+            String manifest = ((DirectoryReader)readerDest).getIndexCommit().getUserData().get(
+                    SegmentwiseConverter.COMMIT_SEGMENTS);
+            assertTrue("The manifest '" + manifest + "' should map the second source segment to " + destName,
+                       manifest.contains(secondName + ":-1:-1=" + destName));
+            readerDest.close();
+        } finally {
+            delete(INDEX_SRC);
+            delete(INDEX_DEST);
+        }
+    }
+
+    // Marks all documents in the first segment as deleted
+    private static class AllDeletedFirstSegment extends FilterDirectoryReader {
+        public AllDeletedFirstSegment(DirectoryReader in) {
+            super(in, new SubReaderWrapper() {
+                private boolean first = true;
+
+                @Override
+                public AtomicReader wrap(final AtomicReader reader) {
+                    if (!first) {
+                        return reader;
+                    }
+                    first = false;
+                    return new FilterAtomicReader(reader) {
+                        @Override
+                        public Bits getLiveDocs() {
+                            return new Bits.MatchNoBits(maxDoc());
+                        }
+
+                        @Override
+                        public int numDocs() {
+                            return 0;
+                        }
+                    };
+                }
+            });
+        }
+
+        @Override
+        protected DirectoryReader doWrapDirectoryReader(DirectoryReader in) {
+            return new AllDeletedFirstSegment(in);
+        }
+    }
+
+    public void testSidecarDVEnableIndex() throws IOException {
+        log.info("testSidecarDVEnableIndex started");
+        // Only DocValues are written, so the segments and the order of the documents are unchanged
+        assertLargerDVEnableIndex(new DVSettings().setSidecar(true).setThreads(2), true);
+    }
+
+    public void testPassthroughDVEnableIndex() throws IOException {
+        log.info("testPassthroughDVEnableIndex started");
+        final File INDEX_SRC = new File("target/testindex.deletefreely.passthrough");
+        final File INDEX_DEST = new File("target/testindex.deletefreely.passthrough.dest");
+        try {
+            // Segment 0 has a field needing DocValues, segment 1 only has DocValues to remove,
+            // segment 2 is not affected at all
+            IndexWriter writer = new IndexWriter(MMapDirectory.open(INDEX_SRC), new IndexWriterConfig(
+                    LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION)));
+            for (int docID = 0 ; docID < 300 ; docID++) {
+                Document document = new Document();
+                document.add(new StringField(ID, Integer.toString(docID), Field.Store.YES));
+                if (docID < 100) {
+                    document.add(new StringField(SINGLE, SINGLE_CONTENT + docID, Field.Store.YES));
+                }
+                if (docID < 200) {
+                    document.add(new SortedDocValuesField(DV, new BytesRef(DV_CONTENT)));
+                    document.add(new StringField(DV, DV_CONTENT + docID, Field.Store.NO));
+                }
+                writer.addDocument(document);
+                if (docID % 100 == 99) {
+                    writer.commit();
+                }
+            }
+            writer.close();
+
+            List<DVConfig> dvConfigs = new ArrayList<>();
+            for (DVConfig baseConfig: IndexUtils.getDVConfigs(INDEX_SRC)) {
+                if (SINGLE.equals(baseConfig.getName())) {
+                    dvConfigs.add(baseConfig.set(FieldInfo.DocValuesType.SORTED));
+                } else if (DV.equals(baseConfig.getName())) {
+                    dvConfigs.add(baseConfig.set(null));
+                }
+            }
+            IndexUtils.convert(INDEX_SRC, INDEX_DEST, dvConfigs);
+            assertFalse("The passthrough folder should be removed after conversion",
+                        new File(INDEX_DEST, IndexUtils.PASSTHROUGH_FOLDER).exists());
+            assertTrue("The destination should be a valid index",
+                       new CheckIndex(MMapDirectory.open(INDEX_DEST)).checkIndex().clean);
+
+            IndexReader readerDest = DirectoryReader.open(MMapDirectory.open(INDEX_DEST));
+            assertEquals("The destination should contain all documents", 300, readerDest.maxDoc());
+            assertEquals("The passed through segments should not be merged", 3, readerDest.leaves().size());
+            for (int docID = 0 ; docID < 300 ; docID++) {
+                assertEquals("The document order should be preserved",
+                             Integer.toString(docID), readerDest.document(docID).get(ID));
+            }
+            for (AtomicReaderContext leaf: readerDest.leaves()) {
+                assertNull("There should be no DocValues for field " + DV + " in segment #" + leaf.ord,
+                           leaf.reader().getSortedDocValues(DV));
+            }
+            IndexSearcher searcher = new IndexSearcher(readerDest);
+            for (int docID = 0 ; docID < 200 ; docID++) {
+                assertEquals("The indexed terms for field " + DV + " should be kept for doc " + docID, 1,
+                             searcher.search(new TermQuery(new Term(DV, DV_CONTENT + docID)), 1).totalHits);
+            }
+            for (int docID = 0 ; docID < 100 ; docID++) {
+                assertEquals("The DV for field " + SINGLE + " in doc " + docID + " should match the stored value",
+                             SINGLE_CONTENT + docID, getSortedDocValue(readerDest, docID, SINGLE));
+            }
+            readerDest.close();
+        } finally {
+            delete(INDEX_SRC);
+            delete(INDEX_DEST);
+        }
+    }
+
+    public void testIncrementalDVEnableIndex() throws IOException {
+        final int DOCS = 500;
+        log.info("testIncrementalDVEnableIndex started");
+
+        final File INDEX_SRC = generatePostingsIndex(DOCS);
+        final File INDEX_DEST = new File("target/testindex.deletefreely.incremental.dest");
+        final DVSettings settings = new DVSettings().setIncremental(true).setThreads(2);
+        try {
+            IndexUtils.convert(INDEX_SRC, INDEX_DEST, createPostingsDVConfigs(INDEX_SRC), settings);
+            assertIncrementalDestination(INDEX_SRC, INDEX_DEST);
+
+            // New segment and deletions in existing segments
+            IndexWriter writer = new IndexWriter(
+                    MMapDirectory.open(INDEX_SRC), new IndexWriterConfig(
+                    LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION)).setMergePolicy(NoMergePolicy.COMPOUND_FILES));
+            for (int docID = DOCS ; docID < DOCS + 100 ; docID++) {
+                writer.addDocument(createPostingsDocument(docID));
+            }
+            writer.deleteDocuments(new Term(ID, "7"), new Term(ID, "300"), new Term(ID, Integer.toString(DOCS + 1)));
+            writer.commit();
+            IndexUtils.convert(INDEX_SRC, INDEX_DEST, createPostingsDVConfigs(INDEX_SRC), settings);
+            assertIncrementalDestination(INDEX_SRC, INDEX_DEST);
+
+            // Deletions only
+            writer.deleteDocuments(new Term(ID, "8"));
+            writer.close();
+            IndexUtils.convert(INDEX_SRC, INDEX_DEST, createPostingsDVConfigs(INDEX_SRC), settings);
+            assertIncrementalDestination(INDEX_SRC, INDEX_DEST);
+
+            // Merged segment replaces the old ones
+            writer = new IndexWriter(MMapDirectory.open(INDEX_SRC), new IndexWriterConfig(
+                    LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION)));
+            writer.forceMerge(1);
+            writer.close();
+            IndexUtils.convert(INDEX_SRC, INDEX_DEST, createPostingsDVConfigs(INDEX_SRC), settings);
+            assertIncrementalDestination(INDEX_SRC, INDEX_DEST);
+            IndexReader readerDest = DirectoryReader.open(MMapDirectory.open(INDEX_DEST));
+            assertEquals("The destination should only hold the documents from the merged source segment",
+                         DOCS + 100 - 4, readerDest.maxDoc());
+            readerDest.close();
+        } finally {
+            delete(INDEX_SRC);
+            delete(INDEX_DEST);
+        }
+    }
+
+    public void testBinaryDVEnableIndex() throws IOException {
+        final int DOCS = 200;
+        log.info("testBinaryDVEnableIndex started");
+        final File INDEX_SRC = new File("target/testindex.deletefreely.binary");
+        final File INDEX_DEST = new File("target/testindex.deletefreely.binary.dest");
+        try {
+            IndexWriter writer = new IndexWriter(MMapDirectory.open(INDEX_SRC), new IndexWriterConfig(
+                    LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION)));
+            for (int docID = 0 ; docID < DOCS ; docID++) {
+                Document document = new Document();
+                document.add(new StringField(ID, Integer.toString(docID), Field.Store.YES));
+                if (docID % 7 != 0) {
+                    document.add(new StoredField(BINARY, createBinaryValue(docID)));
+                }
+                writer.addDocument(document);
+                if (docID == DOCS / 2) {
+                    writer.commit(); // Ensure multi-segment
+                }
+            }
+            writer.close();
+
+            List<DVConfig> dvConfigs = new ArrayList<>();
+            for (DVConfig baseConfig: IndexUtils.getDVConfigs(INDEX_SRC)) {
+                if (BINARY.equals(baseConfig.getName())) {
+                    dvConfigs.add(baseConfig.set(FieldInfo.DocValuesType.BINARY));
+                }
+            }
+            IndexUtils.convert(INDEX_SRC, INDEX_DEST, dvConfigs);
+
+            IndexReader readerDest = DirectoryReader.open(MMapDirectory.open(INDEX_DEST));
+            BinaryDocValues dvs = MultiDocValues.getBinaryValues(readerDest, BINARY);
+            assertNotNull("There should be BinaryDocValues for field " + BINARY, dvs);
+            BytesRef value = new BytesRef();
+            for (int docID = 0 ; docID < DOCS ; docID++) {
+                dvs.get(docID, value);
+                assertEquals("The DV for field " + BINARY + " in doc " + docID + " should match the stored value",
+                             docID % 7 == 0 ? new BytesRef() : new BytesRef(createBinaryValue(docID)), value);
+            }
+            readerDest.close();
+        } finally {
+            delete(INDEX_SRC);
+            delete(INDEX_DEST);
+        }
+    }
+
+    public void testStoredFieldsChunkCache() throws IOException {
         final int DOCS = 1000;
+        final File INDEX = new File("target/testindex.deletefreely.chunkcache");
+        try {
+            IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION));
+            IndexWriter writer = new IndexWriter(MMapDirectory.open(INDEX), config);
+            for (int docID = 0 ; docID < DOCS ; docID++) {
+                Document document = new Document();
+                document.add(new StringField(ID, Integer.toString(docID), Field.Store.YES));
+                document.add(new StoredField(BINARY, createBinaryValue(docID)));
+                document.add(new StoredField(LONG, (long) docID * docID));
+                document.add(new StoredField(FLOAT, docID / 3f));
+                if (docID % 3 == 0) {
+                    document.add(new StoredField(MULTI, MULTI_CONTENT_1 + docID));
+                    document.add(new StoredField(MULTI, MULTI_CONTENT_2 + docID));
+                }
+                writer.addDocument(document);
+                if (docID == DOCS / 2) {
+                    writer.commit(); // Ensure multi-segment, with both compound and plain files
+                    writer.getConfig().getMergePolicy().setNoCFSRatio(0.0);
+                }
+            }
+            writer.close();
 
-        log.info("testLargerDVEnableIndex started");
+            IndexReader reader = DirectoryReader.open(MMapDirectory.open(INDEX));
+            assertEquals("The index should have 2 segments", 2, reader.leaves().size());
+            Random random = new Random(87);
+            for (AtomicReaderContext context: reader.leaves()) {
+                AtomicReader segment = context.reader();
+                try (StoredFieldsChunkCache cache = StoredFieldsChunkCache.create(segment, 100000)) {
+                    assertNotNull("There should be a cache for segment " + context.ord, cache);
+                    for (int i = 0 ; i < 2 * segment.maxDoc() ; i++) { // Both sequential and random access
+                        final int docID = i < segment.maxDoc() ? i : random.nextInt(segment.maxDoc());
+                        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+                        cache.visitDocument(docID, visitor);
+                        assertEquals("The cached doc " + docID + " in segment " + context.ord + " should match",
+                                     toString(segment.document(docID)), toString(visitor.getDocument()));
+                    }
+                }
+            }
+            reader.close();
+        } finally {
+            delete(INDEX);
+        }
+    }
 
+    private static String toString(Document document) {
+        StringBuilder sb = new StringBuilder();
+        for (IndexableField field: document.getFields()) {
+            sb.append(field.name()).append(":").append(field.numericValue()).append(":")
+                    .append(field.stringValue()).append(":").append(field.binaryValue()).append(" ");
+        }
+        return sb.toString();
+    }
+
+    // Mostly small values, with some spanning the 32KB pages used for storage
+    private static byte[] createBinaryValue(int docID) {
+        byte[] value = new byte[docID % 10 == 1 ? 40000 + docID : docID % 50];
+        for (int i = 0 ; i < value.length ; i++) {
+            value[i] = (byte) (docID + i);
+        }
+        return value;
+    }
+
+    public void testPostingsDVEnableIndex() throws IOException {
+        final int DOCS = 500;
+        log.info("testPostingsDVEnableIndex started");
+
+        final File INDEX_SRC = generatePostingsIndex(DOCS);
+        final File INDEX_DEST = new File("target/testindex.deletefreely.postings.dest");
+        try {
+            List<DVConfig> dvConfigs = createPostingsDVConfigs(INDEX_SRC);
+            IndexUtils.convert(INDEX_SRC, INDEX_DEST, dvConfigs);
+
+            IndexReader readerDest = DirectoryReader.open(MMapDirectory.open(INDEX_DEST));
+            for (int docID = 0 ; docID < DOCS ; docID++) {
+                assertPostingsValues(readerDest, docID, docID);
+            }
+            readerDest.close();
+        } finally {
+            delete(INDEX_SRC);
+            delete(INDEX_DEST);
+        }
+    }
+
+    public void testDeletedDocumentsSkipped() throws IOException {
+        log.info("testDeletedDocumentsSkipped started");
+        final File INDEX = generatePostingsIndex(500);
+        try {
+            IndexWriter writer = new IndexWriter(MMapDirectory.open(INDEX), new IndexWriterConfig(
+                    LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION)));
+            writer.deleteDocuments(new Term(POSTINGS_SINGLE, "s_36")); // The term only occurs in deleted docs
+            writer.close();
+
+            DVDirectoryReader reader = new DVDirectoryReader(DirectoryReader.open(MMapDirectory.open(INDEX)),
+                                                             new HashSet<>(createPostingsDVConfigs(INDEX)));
+            for (AtomicReaderContext context: reader.leaves()) {
+                AtomicReader segment = context.reader();
+                Bits liveDocs = segment.getLiveDocs();
+                assertNotNull("All segments should have deletions", liveDocs);
+                SortedDocValues singles = segment.getSortedDocValues(POSTINGS_SINGLE);
+                assertTrue("The term from deleted documents only should not be in the dictionary",
+                           singles.lookupTerm(new BytesRef("s_36")) < 0);
+                Bits docsWithField = segment.getDocsWithField(POSTINGS_LONG);
+                for (int docID = 0 ; docID < segment.maxDoc() ; docID++) {
+                    if (!liveDocs.get(docID)) {
+                        assertFalse("The deleted doc " + docID + " should have no value", docsWithField.get(docID));
+                    }
+                }
+            }
+            reader.close();
+        } finally {
+            delete(INDEX);
+        }
+    }
+
+    public void testStringSort() throws IOException {
+        log.info("testStringSort started");
+        final File INDEX = generatePostingsIndex(500);
+        try {
+            IndexReader plain = DirectoryReader.open(MMapDirectory.open(INDEX));
+            DVDirectoryReader wrapped = new DVDirectoryReader(DirectoryReader.open(MMapDirectory.open(INDEX)),
+                                                              new HashSet<>(createPostingsDVConfigs(INDEX)));
+            assertTrue("The index should have multiple segments", wrapped.leaves().size() > 1);
+            // The plain reader un-inverts the field through the FieldCache and serves as reference
+            Sort sort = new Sort(new SortField(POSTINGS_SINGLE, SortField.Type.STRING));
+            TopFieldDocs expected = new IndexSearcher(plain).search(new MatchAllDocsQuery(), 200, sort);
+            TopFieldDocs actual = new IndexSearcher(wrapped).search(new MatchAllDocsQuery(), 200, sort);
+
+            assertEquals("The number of hits should match", expected.scoreDocs.length, actual.scoreDocs.length);
+            BytesRef previous = null;
+            for (int i = 0 ; i < actual.scoreDocs.length ; i++) {
+                assertEquals("The docID at position " + i + " should match",
+                             expected.scoreDocs[i].doc, actual.scoreDocs[i].doc);
+                BytesRef value = (BytesRef)((FieldDoc)actual.scoreDocs[i]).fields[0];
+                assertEquals("The sort value at position " + i + " should match",
+                             ((FieldDoc)expected.scoreDocs[i]).fields[0], value);
+                if (previous != null) {
+                    assertTrue("The sort value at position " + i + " should not be less than the previous value",
+                               value != null && previous.compareTo(value) <= 0);
+                }
+                previous = value;
+            }
+            assertNotNull("The last sort value should be defined", previous);
+            plain.close();
+            wrapped.close();
+        } finally {
+            delete(INDEX);
+        }
+    }
+
+    public void testMismatchingTypeReturnsNull() throws IOException {
+        log.info("testMismatchingTypeReturnsNull started");
+        final File INDEX = generatePostingsIndex(500);
+        final File CACHE = new File("target/testcache.deletefreely.mismatch");
+        try {
+            Set<DVConfig> dvConfigs = new HashSet<>(createPostingsDVConfigs(INDEX));
+            DVSettings settings = new DVSettings().setCacheDir(CACHE);
+            for (int i = 0 ; i < 2 ; i++) { // Second round loads from storage
+                DVDirectoryReader reader = new DVDirectoryReader(
+                        DirectoryReader.open(MMapDirectory.open(INDEX)), dvConfigs, settings);
+                AtomicReader segment = reader.leaves().get(0).reader();
+                assertNotNull("The configured type should be available",
+                              segment.getSortedDocValues(POSTINGS_SINGLE));
+                assertNull("Numeric should be null for a SORTED field", segment.getNumericDocValues(POSTINGS_SINGLE));
+                assertNull("Binary should be null for a SORTED field", segment.getBinaryDocValues(POSTINGS_SINGLE));
+                assertNull("SortedSet should be null for a SORTED field",
+                           segment.getSortedSetDocValues(POSTINGS_SINGLE));
+                assertNull("Sorted should be null for a SORTED_SET field", segment.getSortedDocValues(POSTINGS_MULTI));
+                assertNull("Sorted should be null for a NUMERIC field", segment.getSortedDocValues(POSTINGS_LONG));
+                reader.close();
+            }
+        } finally {
+            delete(INDEX);
+            delete(CACHE);
+        }
+    }
+
+    private List<DVConfig> createPostingsDVConfigs(File index) throws IOException {
+        List<DVConfig> dvConfigs = new ArrayList<>();
+        for (DVConfig baseConfig: IndexUtils.getDVConfigs(index)) {
+            if (POSTINGS_SINGLE.equals(baseConfig.getName())) {
+                dvConfigs.add(baseConfig.set(FieldInfo.DocValuesType.SORTED).setSource(DVConfig.Source.POSTINGS));
+            } else if (POSTINGS_MULTI.equals(baseConfig.getName())) {
+                dvConfigs.add(baseConfig.set(FieldInfo.DocValuesType.SORTED_SET).setSource(
+                        DVConfig.Source.POSTINGS));
+            } else if (POSTINGS_LONG.equals(baseConfig.getName())) {
+                dvConfigs.add(baseConfig.set(FieldInfo.DocValuesType.NUMERIC, FieldType.NumericType.LONG)
+                                      .setSource(DVConfig.Source.POSTINGS));
+            } else if (POSTINGS_DOUBLE.equals(baseConfig.getName())) {
+                dvConfigs.add(baseConfig.set(FieldInfo.DocValuesType.NUMERIC, FieldType.NumericType.DOUBLE)
+                                      .setSource(DVConfig.Source.POSTINGS));
+            }
+        }
+        assertEquals("All postings fields should be configured", 4, dvConfigs.size());
+        return dvConfigs;
+    }
+
+    // Checks the DocValues for the document at docID in the reader against the values from createPostingsDocument
+    private void assertPostingsValues(IndexReader reader, int docID, int id) throws IOException {
+        assertEquals("The DV for field " + POSTINGS_SINGLE + " in doc " + id + " should match the term",
+                     id % 5 == 0 ? "" : "s_" + id % 37,
+                     getSortedDocValue(reader, docID, POSTINGS_SINGLE));
+        List<String> expected = new ArrayList<>();
+        if (id % 3 != 0) {
+            expected.addAll(new TreeSet<>(Arrays.asList("m_" + id % 11, "m_" + id % 7)));
+        }
+        assertEquals("The DVs for field " + POSTINGS_MULTI + " in doc " + id + " should match the terms",
+                     expected, getSortedSetDocValues(reader, docID, POSTINGS_MULTI));
+        assertEquals("The DV for field " + POSTINGS_LONG + " in doc " + id + " should match the term",
+                     id % 4 == 0 ? 0L : id * 7919L - 1000000L,
+                     getLongDocValue(reader, docID, POSTINGS_LONG));
+        assertEquals("The DV for field " + POSTINGS_DOUBLE + " in doc " + id + " should match the term",
+                     id % 6 == 0 ? 0.0 : id / 8.0 + 0.5,
+                     getDoubleDocValue(reader, docID, POSTINGS_DOUBLE));
+    }
+
+    // Checks that the destination contains exactly the live documents from the source, with the expected DVs
+    private void assertIncrementalDestination(File source, File destination) throws IOException {
+        IndexReader readerSrc = DirectoryReader.open(MMapDirectory.open(source));
+        IndexReader readerDest = DirectoryReader.open(MMapDirectory.open(destination));
+        assertEquals("The destination should have the same number of live documents as the source",
+                     readerSrc.numDocs(), readerDest.numDocs());
+        Bits liveDocs = MultiFields.getLiveDocs(readerDest);
+        Set<Integer> ids = new HashSet<>();
+        for (int docID = 0 ; docID < readerDest.maxDoc() ; docID++) {
+            if (liveDocs != null && !liveDocs.get(docID)) {
+                continue;
+            }
+            int id = Integer.parseInt(readerDest.document(docID).get(ID));
+            assertTrue("The document " + id + " should only be present once", ids.add(id));
+            assertPostingsValues(readerDest, docID, id);
+        }
+        readerSrc.close();
+        readerDest.close();
+    }
+
+    private void assertLargerDVEnableIndex(DVSettings settings, boolean sameOrder) throws IOException {
+        assertLargerDVEnableIndex(settings, sameOrder, 1000);
+    }
+
+    private void assertLargerDVEnableIndex(DVSettings settings, boolean sameOrder, final int DOCS)
+            throws IOException {
         final File INDEX_SRC = generateIndex(DOCS);
         final File INDEX_DEST = new File("target/testindex.deletefreely.dest");
         try {
-            IndexUtils.convert(INDEX_SRC, INDEX_DEST, createDVFieldDescriptions(INDEX_SRC));
+            IndexUtils.convert(INDEX_SRC, INDEX_DEST, createDVFieldDescriptions(INDEX_SRC), settings);
+            if (settings.isCheckpoint()) {
+                assertFalse("The parts folder should be removed after conversion",
+                            new File(INDEX_DEST, SegmentwiseConverter.PARTS_FOLDER).exists());
+                // Running a finished checkpointed conversion again should not add anything
+                IndexUtils.convert(INDEX_SRC, INDEX_DEST, createDVFieldDescriptions(INDEX_SRC), settings);
+            }
+            if (settings.isSidecar()) {
+                assertTrue("The sidecar destination should be a valid index",
+                           new CheckIndex(MMapDirectory.open(INDEX_DEST)).checkIndex().clean);
+            }
             IndexReader readerSrc = DirectoryReader.open(MMapDirectory.open(INDEX_SRC));
             IndexReader readerDest = DirectoryReader.open(MMapDirectory.open(INDEX_DEST));
+            assertEquals("The destination should contain all documents", DOCS, readerDest.maxDoc());
+
+            final int[] srcToDest = new int[DOCS];
+            for (int destID = 0 ; destID < DOCS ; destID++) {
+                srcToDest[Integer.parseInt(readerDest.document(destID).get(ID))] = destID;
+            }
 
             long multiCount = 0;
             long singleCount = 0;
             long longCount = 0;
             long doubleCount = 0;
-            for (int docID = 0 ; docID < DOCS ; docID++) {
+            for (int srcID = 0 ; srcID < DOCS ; srcID++) {
+                final int docID = srcToDest[srcID];
+                if (sameOrder) {
+                    assertEquals("The document order should be preserved", srcID, docID);
+                }
                 {
-                    String[] multisSrc = readerSrc.document(docID).getValues(MULTI);
+                    String[] multisSrc = readerSrc.document(srcID).getValues(MULTI);
                     if (multisSrc != null) {
                         List<String> dvs = getSortedSetDocValues(readerDest, docID, MULTI);
                         Arrays.sort(multisSrc);
@@ -133,7 +857,7 @@ public class DVReaderTest extends TestCase {
                     }
                 }
                 {
-                    String singleSrc = readerSrc.document(docID).get(SINGLE);
+                    String singleSrc = readerSrc.document(srcID).get(SINGLE);
                     if (singleSrc != null) {
                         String dv = getSortedDocValue(readerDest, docID, SINGLE);
                         assertEquals("The DV for field " + SINGLE + " should match the stored value",
@@ -142,7 +866,7 @@ public class DVReaderTest extends TestCase {
                     }
                 }
                 {
-                    IndexableField fieldSrc = readerSrc.document(docID).getField(LONG);
+                    IndexableField fieldSrc = readerSrc.document(srcID).getField(LONG);
                     if (fieldSrc != null) {
                         long longSrc = fieldSrc.numericValue().longValue();
                         long dv = getLongDocValue(readerDest, docID, LONG);
@@ -152,7 +876,7 @@ public class DVReaderTest extends TestCase {
                     }
                 }
                 {
-                    IndexableField fieldSrc = readerSrc.document(docID).getField(DOUBLE);
+                    IndexableField fieldSrc = readerSrc.document(srcID).getField(DOUBLE);
                     if (fieldSrc != null) {
                         double doubleSrc = fieldSrc.numericValue().doubleValue();
                         double dv = getDoubleDocValue(readerDest, docID, DOUBLE);
@@ -303,7 +1027,7 @@ public class DVReaderTest extends TestCase {
         if (dvs == null) {
             throw new IllegalStateException("No SortedSetDocValues for field '" + field + "'");
         }
-        dvs.setDocument(docID);
+        dvs.setDocument(docID-atomContext.docBase);
         List<String> values = new ArrayList<String>();
         BytesRef result = new BytesRef();
         long ord;
@@ -353,7 +1077,7 @@ public class DVReaderTest extends TestCase {
         if (dvs == null) {
             throw new IllegalStateException("No NumericDocValues for field '" + field + "'");
         }
-        return NumericUtils.sortableLongToDouble(dvs.get(docID));
+        return NumericUtils.sortableLongToDouble(dvs.get(docID-atomContext.docBase));
     }
 
     private static long getLongDocValue(IndexReader reader, int docID, String field) throws IOException {
@@ -372,7 +1096,7 @@ public class DVReaderTest extends TestCase {
         if (dvs == null) {
             throw new IllegalStateException("No NumericDocValues for field '" + field + "'");
         }
-        return dvs.get(docID);
+        return dvs.get(docID-atomContext.docBase);
     }
 
     // Semi.random index with stored fields only: multi, single and long. Some values missing from some documents
@@ -435,6 +1159,41 @@ public class DVReaderTest extends TestCase {
         return INDEX;
     }
 
+    // Index with untokenized or numeric, indexed but not stored fields, spread over 2 segments
+    private static File generatePostingsIndex(int documents) throws IOException {
+        final File INDEX = new File("target/testindex.deletefreely.postings");
+        IndexWriter indexWriter = new IndexWriter(
+                MMapDirectory.open(INDEX), new IndexWriterConfig(LUCENE_VERSION, new StandardAnalyzer(LUCENE_VERSION)));
+        for (int docID = 0 ; docID < documents ; docID++) {
+            indexWriter.addDocument(createPostingsDocument(docID));
+            if (docID == documents / 3) {
+                indexWriter.commit(); // Ensure multi-segment
+            }
+        }
+        indexWriter.commit();
+        indexWriter.close();
+        return INDEX;
+    }
+
+    private static Document createPostingsDocument(int docID) {
+        Document document = new Document();
+        document.add(new StringField(ID, Integer.toString(docID), Field.Store.YES));
+        if (docID % 5 != 0) {
+            document.add(new StringField(POSTINGS_SINGLE, "s_" + docID % 37, Field.Store.NO));
+        }
+        if (docID % 3 != 0) {
+            document.add(new StringField(POSTINGS_MULTI, "m_" + docID % 11, Field.Store.NO));
+            document.add(new StringField(POSTINGS_MULTI, "m_" + docID % 7, Field.Store.NO));
+        }
+        if (docID % 4 != 0) {
+            document.add(new LongField(POSTINGS_LONG, docID * 7919L - 1000000L, Field.Store.NO));
+        }
+        if (docID % 6 != 0) {
+            document.add(new DoubleField(POSTINGS_DOUBLE, docID / 8.0 + 0.5, Field.Store.NO));
+        }
+        return document;
+    }
+
     public static File generateIndex() throws IOException {
         final File INDEX = new File("target/testindex.deletefreely");
         Analyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
@@ -0,0 +1,54 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import dk.statsbiblioteket.netark.dvenabler.DVConfig;
+import junit.framework.TestCase;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class BinaryDocValuesWrapperTest extends TestCase {
+
+    public void testSpanningValuesAreIndependent() throws IOException {
+        final int DOCS = 4;
+        final int LENGTH = 20000; // Pages are 32KB, so the values for doc 1 and 3 span pages
+        FieldInfo fieldInfo = new FieldInfo(
+                "binary", false, 0, false, false, false, null, FieldInfo.DocValuesType.BINARY, null, null);
+        BinaryDocValuesWrapper.Collector collector = new BinaryDocValuesWrapper.Collector(
+                new DVConfig(fieldInfo, null), DOCS);
+        for (int docID = 0 ; docID < DOCS ; docID++) {
+            collector.collect(docID, new BytesRef(createValue(docID, LENGTH)));
+        }
+        collector.finish();
+        BinaryDocValuesWrapper docValues = collector.getDocValues();
+
+        BytesRef first = new BytesRef();
+        docValues.get(1, first);
+        BytesRef second = new BytesRef();
+        docValues.get(3, second);
+        assertEquals("The value for doc 3 should be as stored", new BytesRef(createValue(3, LENGTH)), second);
+        assertEquals("The value for doc 1 should be intact after the lookup of doc 3",
+                     new BytesRef(createValue(1, LENGTH)), first);
+    }
+
+    private byte[] createValue(int docID, int length) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte)('a' + docID));
+        return value;
+    }
+}
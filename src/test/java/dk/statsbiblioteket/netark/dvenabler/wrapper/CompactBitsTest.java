@@ -0,0 +1,71 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import junit.framework.TestCase;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.util.Random;
+
+public class CompactBitsTest extends TestCase {
+    private static final int DOCS = 10000;
+
+    public void testAll() {
+        Bits compacted = assertCompact(1.0);
+        assertTrue("All documents should be represented as MatchAllBits", compacted instanceof Bits.MatchAllBits);
+    }
+
+    public void testNone() {
+        Bits compacted = assertCompact(0.0);
+        assertTrue("No documents should be represented as MatchNoBits", compacted instanceof Bits.MatchNoBits);
+    }
+
+    public void testSparse() {
+        Bits compacted = assertCompact(0.001);
+        assertFalse("Few documents should not be a bitmap", compacted instanceof OpenBitSet);
+        assertTrue("Few documents should take up less space than a bitmap",
+                   CompactBits.ramBytesUsed(compacted) * CompactBits.MIN_REDUCTION <= DOCS / 8);
+    }
+
+    public void testNearlyFull() {
+        Bits compacted = assertCompact(0.999);
+        assertFalse("Few documents without the field should not be a bitmap", compacted instanceof OpenBitSet);
+    }
+
+    public void testDense() {
+        Bits compacted = assertCompact(0.5);
+        assertTrue("Half the documents should be a bitmap", compacted instanceof OpenBitSet);
+    }
+
+    private Bits assertCompact(double density) {
+        Random random = new Random(87);
+        OpenBitSet bits = new OpenBitSet(DOCS);
+        for (int docID = 0 ; docID < DOCS ; docID++) {
+            if (random.nextDouble() < density) {
+                bits.fastSet(docID);
+            }
+        }
+        Bits compacted = CompactBits.compact(bits, DOCS);
+        if (!(compacted instanceof OpenBitSet)) {
+            assertEquals("The length should be maxDoc", DOCS, compacted.length());
+        }
+        for (int docID = 0 ; docID < DOCS ; docID++) {
+            assertEquals("The bit for doc " + docID + " should be unchanged with density " + density,
+                         bits.get(docID), compacted.get(docID));
+        }
+        return compacted;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.netark.dvenabler.wrapper;
+
+import junit.framework.TestCase;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.*;
+
+public class ValueSorterTest extends TestCase {
+
+    public void testInMemory() throws IOException {
+        assertResolve(Long.MAX_VALUE);
+    }
+
+    public void testOffline() throws IOException {
+        assertResolve(1); // Forces spill to storage
+    }
+
+    public void testEmpty() throws IOException {
+        ValueDictionary dictionary = new ValueSorter("test", Long.MAX_VALUE, null).resolve(
+                new ValueSorter.OrdinalConsumer() {
+                    @Override
+                    public void ord(int docID, long ord) {
+                        fail("There should be no ords for an empty sorter");
+                    }
+                });
+        assertEquals("The dictionary should be empty", 0, dictionary.size());
+        ValueDictionary.Cursor cursor = dictionary.cursor();
+        assertEquals("Any value should have insertion point 0", -1, cursor.find(new BytesRef("value")));
+        assertEquals("The empty value should have insertion point 0", -1, cursor.find(new BytesRef()));
+        assertEquals("Lookup should give the empty value", 0, cursor.lookup(0).length);
+    }
+
+    private void assertResolve(long heapBudget) throws IOException {
+        final int DOCS = 5000;
+        final Random random = new Random(87);
+        final String[] docValues = new String[DOCS];
+        final TreeSet<BytesRef> expected = new TreeSet<>();
+
+        ValueSorter sorter = new ValueSorter("test", heapBudget, null);
+        for (int docID = 0 ; docID < DOCS ; docID++) {
+            docValues[docID] = "value_" + random.nextInt(DOCS/3) + (random.nextBoolean() ? "" : "\u00e6\u00f8\u00e5");
+            BytesRef value = new BytesRef(docValues[docID]);
+            expected.add(value);
+            sorter.add(docID, value);
+        }
+
+        final long[] docToOrd = new long[DOCS];
+        Arrays.fill(docToOrd, -1);
+        ValueDictionary dictionary = sorter.resolve(new ValueSorter.OrdinalConsumer() {
+            @Override
+            public void ord(int docID, long ord) {
+                assertEquals("There should only be a single ord for doc " + docID, -1, docToOrd[docID]);
+                docToOrd[docID] = ord;
+            }
+        });
+
+        assertEquals("The number of unique values should match", expected.size(), dictionary.size());
+        ValueDictionary.Cursor cursor = dictionary.cursor();
+        int ord = 0;
+        for (BytesRef value: expected) {
+            assertEquals("The value for ord " + ord + " should be as expected", value, cursor.lookup(ord));
+            assertEquals("The ord for " + value.utf8ToString() + " should be found", ord, cursor.find(value));
+            ord++;
+        }
+        for (int docID = 0 ; docID < DOCS ; docID++) {
+            assertEquals("The value for doc " + docID + " should be as added",
+                         docValues[docID], cursor.lookup(docToOrd[docID]).utf8ToString());
+        }
+        assertEquals("A value before all others should have insertion point 0",
+                     -1, cursor.find(new BytesRef("a")));
+        assertEquals("A value after all others should have insertion point size",
+                     -expected.size()-1, cursor.find(new BytesRef("z")));
+        assertEquals("A value between others should have the right insertion point",
+                     -expected.headSet(new BytesRef("value_1x")).size()-1, cursor.find(new BytesRef("value_1x")));
+    }
+}